@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javassist.ClassPool;
 
@@ -45,6 +46,9 @@ public class Agent {
     public static final Object waitConnectionLock = new Object();
     public static Server server;
     private static Config config;
+    private static Sampler sampler;
+    private static Demoter demoter;
+    private static FlightRecorder recorder;
 
     public static RuntimeMXBean rtbean = ManagementFactory.getRuntimeMXBean();
     public static List<GarbageCollectorMXBean> gcbeans = ManagementFactory
@@ -98,6 +102,25 @@ public class Agent {
 
                 Agent.inst = inst;
 
+                ThreadProfiler.calibrate();
+
+                if (config.getTraceDir() != null) {
+                    TraceBuffer.configure(config.getTraceDir(),
+                                          config.getTraceSize() * 1024);
+                }
+                if (config.getRulesFile() != null) {
+                    String[] rules = config.readRulesFile();
+                    applyRules(rules[0], rules[1]);
+                    print(0, "Applied rules from " + config.getRulesFile());
+                }
+                if (config.getRecorderDir() != null) {
+                    recorder = new FlightRecorder(config.getRecorderDir(), config
+                        .getRecorderInterval() * 1000L, config.getRecorderRetention()
+                            * 60000L, config.getRecorderMaxFiles(), config
+                        .isRecorderDelta());
+                    recorder.start();
+                }
+
                 Runtime.getRuntime().addShutdownHook(new Thread() {
                     @Override
                     public void run() {
@@ -105,6 +128,11 @@ public class Agent {
                         if (config.isSaveSnapshotOnExit()) {
                             SnapshotUtil.saveSnapshot();
                         }
+                        if (recorder != null) {
+                            recorder.shutdown();
+                            recorder.record();
+                        }
+                        TraceBuffer.flushMethods();
                         print(0, "Profiler stopped");
                         config.requestTempDirCleanup();
                     }
@@ -158,6 +186,7 @@ public class Agent {
             print(0, "--> Starting class redefinition (max " + classes.length + ")...");
             ThreadProfiler.startSessionConfig();
             config.parseRules(optionsAsStr, rulesAsStr);
+            applySessionOptions();
             if (callback != null)
                 callback.setMaxValue(classes.length);
             int nProbed = 0;
@@ -216,6 +245,178 @@ public class Agent {
 
     }
 
+    /**
+     * Applies a new set of instrumentation rules without redefining any classes. This is
+     * used before the application starts, when no class has been instrumented yet.
+     * 
+     * @param optionsAsStr new default rule options given as a string
+     * @param rulesAsStr new rule list given as a string
+     */
+    static void applyRules(String optionsAsStr, String rulesAsStr) {
+        synchronized (globalLock) {
+            ThreadProfiler.startSessionConfig();
+            try {
+                config.parseRules(optionsAsStr, rulesAsStr);
+                applySessionOptions();
+            } finally {
+                ThreadProfiler.endSessionConfig();
+            }
+        }
+    }
+
+    /**
+     * Selects the methods whose names can be used in rules.
+     * 
+     * @param methods fully qualified method names (without parameters)
+     * @return the methods accepted by {@link #makeRules(List)}
+     */
+    static List<String> filterRuleMethods(List<String> methods) {
+        List<String> valid = new ArrayList<String>();
+        for (String m : methods) {
+            if (Pattern.matches("[a-zA-Z0-9_\\.\\$]+", m)) {
+                valid.add(m);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Creates a rule list that instruments only the given methods. Methods whose names
+     * cannot be used in rules are skipped (see {@link #filterRuleMethods(List)}).
+     * 
+     * @param methods fully qualified method names (without parameters)
+     * @return rules given as a string
+     */
+    static String makeRules(List<String> methods) {
+        StringBuilder rules = new StringBuilder();
+        for (String m : filterRuleMethods(methods)) {
+            rules.append(m + "(*) : accept; ");
+        }
+        rules.append("*(*) : reject");
+        return rules.toString();
+    }
+
+    /**
+     * Passes the session options of the current configuration to the profiler and
+     * measures the probe overhead again. Must be called while a session is being
+     * configured.
+     */
+    private static void applySessionOptions() {
+        ThreadProfiler.setRecordCallTree(config.isCallTree());
+        int clock = config.getClock();
+        if (clock != ThreadProfiler.CLOCK_WALL && !config.isSampling()) {
+            if (!threadbean.isCurrentThreadCpuTimeSupported()) {
+                print(0, "Thread CPU time not supported, using wall clock time");
+                clock = ThreadProfiler.CLOCK_WALL;
+            } else if (!threadbean.isThreadCpuTimeEnabled()) {
+                threadbean.setThreadCpuTimeEnabled(true);
+            }
+        }
+        boolean async = config.isAsyncEngine() && !config.isSampling();
+        if (async && config.hasTransactions()) {
+            print(0, "The async engine does not record transactions,"
+                    + " using the inline engine");
+            async = false;
+        }
+        if (async && clock == ThreadProfiler.CLOCK_BOTH) {
+            print(0, "The async engine logs a single clock, using wall clock time");
+            clock = ThreadProfiler.CLOCK_WALL;
+        }
+        ThreadProfiler.setClock(clock);
+        ThreadProfiler.setAsyncEngine(async);
+        ThreadProfiler.setTriggerOnly(!config.isSampling() && config.hasTriggers());
+        Transactions.configure(config.getTransactionKeys(), makeTransactionExtractor());
+        ThreadProfiler.setThreadStats(config.isSampling() ? ThreadProfiler.THREADS_OFF
+                : config.getThreadStats(), config.getThreadPools());
+        ThreadProfiler.setThreadFilter(config.getThreadFilter());
+        int timingRate = config.isSampling() ? 1 : config.getTimingRate();
+        ThreadProfiler.setTimingRate(timingRate, config.isTimingRandom());
+        if (config.isSampling() || async) {
+            // the calibration measures the inline engine only
+            ThreadProfiler.clearProbeCost();
+        } else {
+            ThreadProfiler.calibrate();
+        }
+        if (sampler != null) {
+            sampler.shutdown();
+            sampler = null;
+        }
+        if (config.isSampling()) {
+            sampler = new Sampler(config.getSamplingInterval());
+            sampler.start();
+        }
+        if (demoter != null) {
+            demoter.shutdown();
+            demoter = null;
+        }
+        int demotionMode = config.getDemotionMode();
+        if (!config.isSampling() && demotionMode != ThreadProfiler.PROBE_TIMED) {
+            demoter = new Demoter(demotionMode, config.getDemotionTime(), config
+                .getDemotionRate());
+            demoter.start();
+        }
+    }
+
+    /**
+     * Creates the transaction key extractor named by the configuration, if any. Entry
+     * methods that need it use their own names as keys if it cannot be created.
+     * 
+     * @return extractor or <code>null</code>
+     */
+    private static TransactionKeyExtractor makeTransactionExtractor() {
+        String name = config.getTransactionExtractor();
+        if (name == null) {
+            return null;
+        }
+        try {
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            return (TransactionKeyExtractor) Class.forName(name, true, loader)
+                .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            print(0, "Could not create transaction key extractor " + name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Redefines the class that declares a method so that the method is no longer
+     * instrumented. Must be called with the global lock held, after the method has been
+     * marked as removed (see {@link ThreadProfiler#demote(int, int)}).
+     * 
+     * @param methodName full name of the method
+     */
+    static void removeInstrumentation(String methodName) {
+        int paren = methodName.indexOf('(');
+        int dot = paren > 0 ? methodName.lastIndexOf('.', paren) : -1;
+        if (dot <= 0) {
+            print(0, "Cannot find the class of " + methodName);
+            return;
+        }
+        String cn = methodName.substring(0, dot);
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (!c.getName().equals(cn)) {
+                continue;
+            }
+            try {
+                byte[] bytes = ClassUtil.loadClassBackup(c);
+                if (bytes != null) {
+                    synchronized (modifiedClassNames) {
+                        // the class is counted again if still transformed
+                        if (modifiedClassNames.remove(cn)) {
+                            modifiedClassCount--;
+                        }
+                    }
+                    ClassDefinition cd = new ClassDefinition(c, bytes);
+                    inst.redefineClasses(new ClassDefinition[]{cd});
+                    print(1, "Removed instrumentation of " + methodName);
+                    break;
+                }
+            } catch (Throwable e) {
+                print(0, "Could not redefine class " + cn, e);
+            }
+        }
+    }
+
     /**
      * Checks whether a class must be redefined.
      * <p>
@@ -232,7 +433,7 @@ public class Agent {
      * <li>The class was transformed/redefined in the last session. This means that we
      * need to undo the bytecode instrumentation.
      * <li>The class will be redefined in the current session. This means that the class
-     * must be instrumented anyway.
+     * must be instrumented anyway (unless the current session uses sampling).
      * </ol>
      * 
      * This method depends on the fact that whenever the method
@@ -254,7 +455,7 @@ public class Agent {
                 }
             }
         }
-        if (config.getRules() != null) {
+        if (config.getRules() != null && !config.isSampling()) {
             for (Rule rule : config.getRules()) {
                 if (ruleMatchesClass(rule, c)) {
                     if (rule.getAction() == Rule.Action.ACCEPT) {
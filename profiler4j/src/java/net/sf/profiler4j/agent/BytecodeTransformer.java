@@ -77,7 +77,7 @@ public class BytecodeTransformer {
                 ClassUtil.saveClassBackup(className, loader, classBytes);
             }
             List<Rule> rules = config.getRules();
-            if (!enabled || rules == null) {
+            if (!enabled || rules == null || config.isSampling()) {
                 return null;
             }
             boolean modified = false;
@@ -106,6 +106,9 @@ public class BytecodeTransformer {
                                 && isGetterSetter(cm)) {
                             continue;
                         }
+                        if (ThreadProfiler.isRemoved(names[0])) {
+                            continue;
+                        }
                         boolean packageAccess = Modifier.isPackage(cm.getModifiers());
                         boolean protectedAccess = Modifier.isProtected(cm.getModifiers());
                         boolean publicAccess = Modifier.isPublic(cm.getModifiers());
@@ -124,7 +127,7 @@ public class BytecodeTransformer {
                                 Log.print(1, "Transforming class " + className);
                                 modified = true;
                             }
-                            transformMethod(cm, names);
+                            transformMethod(cm, names, selectedRule);
                         }
                     }
                 }
@@ -166,11 +169,30 @@ public class BytecodeTransformer {
         return dir;
     }
 
-    private void transformMethod(CtMethod cm, String[] names)
+    private void transformMethod(CtMethod cm, String[] names, Rule rule)
         throws NotFoundException, CannotCompileException {
         String s = getAccessModifierChar(cm);
         Log.print(2, "   instrumenting " + s + names[1]);
         int globalMethodId = ThreadProfiler.newMethod(names[0]);
+        int transactionMode = Transactions.parseMode(rule
+            .getOption(Rule.Option.TRANSACTION, config));
+        String slowCapture = rule.getOption(Rule.Option.SLOWCAPTURE, config);
+        if (!"off".equals(slowCapture)) {
+            ThreadProfiler.setSlowThreshold(globalMethodId,
+                                            Long.parseLong(slowCapture) * 1000000L);
+        }
+        if (rule.isBooleanOptionSet(Rule.Option.TRIGGER, config)) {
+            ThreadProfiler.setTrigger(globalMethodId);
+        }
+        if (transactionMode != Transactions.MODE_NONE) {
+            ThreadProfiler.setTransactionMode(globalMethodId, transactionMode);
+            cm.insertAfter("{" + THREAD_PROFILER_CN + "#exitMethod(" + globalMethodId
+                    + ");" + THREAD_PROFILER_CN + "#endTransaction();}", true);
+            cm.insertBefore("{" + THREAD_PROFILER_CN + "#beginTransaction("
+                    + globalMethodId + ", $args);" + THREAD_PROFILER_CN + "#enterMethod("
+                    + globalMethodId + ");}");
+            return;
+        }
         cm.insertAfter("{" + THREAD_PROFILER_CN + "#exitMethod(" + globalMethodId + ");"
                 + "}", true);
         cm.insertBefore("{" + THREAD_PROFILER_CN + "#enterMethod(" + globalMethodId + ");"
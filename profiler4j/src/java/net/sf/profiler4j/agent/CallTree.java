@@ -0,0 +1,194 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import java.util.Arrays;
+
+/**
+ * Calling context tree, i.e., a tree with one node per distinct call path, holding the
+ * number of invocations and the total time spent in each path.
+ * <p>
+ * Nodes are numbered sequentially as they are created, so the parent of a node always
+ * has a lower number. Node {@link #ROOT} is a virtual node that represents the
+ * thread itself. Children are located through an open-addressing table keyed by the
+ * pair (parent node, method index).
+ * <p>
+ * Instances are not thread-safe: each one is supposed to be written by a single thread.
+ * Other threads may read it through {@link #mergeInto(CallTree)}, in which case the
+ * values read may be slightly out of date.
+ * 
+ * @see ThreadProfiler
+ */
+class CallTree {
+
+    public static final int ROOT = 0;
+
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] methods = new int[INITIAL_CAPACITY];
+    private int[] hits = new int[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int nodeCount = 1;
+
+    private long[] keys;
+    private int[] keyNodes;
+    private int threshold;
+
+    public CallTree() {
+        parents[ROOT] = -1;
+        methods[ROOT] = -1;
+        allocateIndex(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gets (creating if necessary) the node of a method called from a given node.
+     * 
+     * @param parent parent node
+     * @param method index of the method
+     * @return child node
+     */
+    public int child(int parent, int method) {
+        long k = ((long) parent << 32) | (method & 0xffffffffL);
+        int mask = keys.length - 1;
+        int i = hash(k) & mask;
+        while (true) {
+            long slotKey = keys[i];
+            if (slotKey == k) {
+                return keyNodes[i];
+            }
+            if (slotKey == EMPTY) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (nodeCount >= threshold) {
+            rehash(keys.length << 1);
+            return child(parent, method);
+        }
+        int node = newNode(parent, method);
+        keyNodes[i] = node;
+        keys[i] = k;
+        return node;
+    }
+
+    /**
+     * Adds one invocation to a node.
+     * 
+     * @param node node
+     * @param time time spent in the invocation
+     */
+    public void add(int node, long time) {
+        hits[node]++;
+        times[node] += time;
+    }
+
+    /**
+     * Adds the statistics of this tree to another.
+     * 
+     * @param target tree to update
+     */
+    public void mergeInto(CallTree target) {
+        int n = nodeCount;
+        int[] parents_ = parents;
+        int[] methods_ = methods;
+        int[] hits_ = hits;
+        long[] times_ = times;
+        n = Math.min(n, Math.min(Math.min(parents_.length, methods_.length), Math.min(
+                hits_.length, times_.length)));
+        int[] map = new int[n];
+        map[ROOT] = ROOT;
+        for (int i = 1; i < n; i++) {
+            int node = target.child(map[parents_[i]], methods_[i]);
+            target.hits[node] += hits_[i];
+            target.times[node] += times_[i];
+            map[i] = node;
+        }
+    }
+
+    /**
+     * @return number of nodes, including the root
+     */
+    public int size() {
+        return nodeCount;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getMethod(int node) {
+        return methods[node];
+    }
+
+    public int getHits(int node) {
+        return hits[node];
+    }
+
+    public long getTime(int node) {
+        return times[node];
+    }
+
+    private int newNode(int parent, int method) {
+        if (nodeCount == parents.length) {
+            int newLength = parents.length << 1;
+            int[] a;
+            a = new int[newLength];
+            System.arraycopy(parents, 0, a, 0, nodeCount);
+            parents = a;
+            a = new int[newLength];
+            System.arraycopy(methods, 0, a, 0, nodeCount);
+            methods = a;
+            a = new int[newLength];
+            System.arraycopy(hits, 0, a, 0, nodeCount);
+            hits = a;
+            long[] b = new long[newLength];
+            System.arraycopy(times, 0, b, 0, nodeCount);
+            times = b;
+        }
+        int node = nodeCount;
+        parents[node] = parent;
+        methods[node] = method;
+        nodeCount++;
+        return node;
+    }
+
+    private static int hash(long k) {
+        long h = k * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocateIndex(int capacity) {
+        long[] newKeys = new long[capacity];
+        Arrays.fill(newKeys, EMPTY);
+        keyNodes = new int[capacity];
+        keys = newKeys;
+        threshold = capacity - (capacity >> 2);
+    }
+
+    private void rehash(int capacity) {
+        allocateIndex(capacity);
+        int mask = capacity - 1;
+        for (int node = 1; node < nodeCount; node++) {
+            long k = ((long) parents[node] << 32) | (methods[node] & 0xffffffffL);
+            int i = hash(k) & mask;
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = k;
+            keyNodes[i] = node;
+        }
+    }
+}
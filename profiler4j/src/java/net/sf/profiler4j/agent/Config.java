@@ -13,7 +13,9 @@
  */
 package net.sf.profiler4j.agent;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +31,13 @@ import net.sf.profiler4j.agent.Rule.Option;
  */
 public class Config {
 
+    private static final String DEFAULT_OPTIONS = "-access:public -beanprops:on -calltree:off"
+            + " -slowcapture:off -trigger:off -transaction:off -sampling:off"
+            + " -samplinginterval:10 -demote:off -demotetime:auto -demoterate:10000"
+            + " -clock:wall -txkeys:20 -txextractor:none -threadstats:off"
+            + " -threadpools:none -threadfilter:all -timingrate:1 -timingmode:fixed"
+            + " -engine:inline";
+
     private Map<Option, String> defaultRuleOptions = new HashMap<Option, String>();
     private Map<Option, String> lastDefaultRuleOptions = new HashMap<Option, String>();
     private List<Rule> rules;
@@ -40,6 +49,14 @@ public class Config {
     private boolean exitVmOnFailure = true;
     private boolean waitConnection = true;
     private boolean saveSnapshotOnExit;
+    private File rulesFile;
+    private File recorderDir;
+    private int recorderInterval = 60;
+    private int recorderRetention = 60;
+    private int recorderMaxFiles = 120;
+    private boolean recorderDelta = true;
+    private File traceDir;
+    private int traceSize = 1024;
     private static File tempDir;
     private boolean dumpClasses = false;
     private String password = null;
@@ -59,7 +76,7 @@ public class Config {
     }
     
     public Config(String agentArgs) {
-        defaultRuleOptions = Utils.parseOptions("-access:public -beanprops:on");
+        defaultRuleOptions = Utils.parseOptions(DEFAULT_OPTIONS);
         try {
             File sysTmpDir = new File(System.getProperty("java.io.tmpdir"));
             File seed = File.createTempFile("profiler4j_", "", sysTmpDir);
@@ -95,6 +112,24 @@ public class Config {
                 enabled = Boolean.parseBoolean(value);
             } else if ("password".equals(key)) {
                 password = value;
+            } else if ("snapshotonexit".equals(key)) {
+                saveSnapshotOnExit = Boolean.parseBoolean(value);
+            } else if ("rules".equals(key)) {
+                rulesFile = new File(value);
+            } else if ("recorder".equals(key)) {
+                recorderDir = new File(value);
+            } else if ("recorderinterval".equals(key)) {
+                recorderInterval = Integer.parseInt(value);
+            } else if ("recorderretention".equals(key)) {
+                recorderRetention = Integer.parseInt(value);
+            } else if ("recordermaxfiles".equals(key)) {
+                recorderMaxFiles = Integer.parseInt(value);
+            } else if ("recorderdelta".equals(key)) {
+                recorderDelta = Boolean.parseBoolean(value);
+            } else if ("trace".equals(key)) {
+                traceDir = new File(value);
+            } else if ("tracesize".equals(key)) {
+                traceSize = Integer.parseInt(value);
             } else {
                 throw new Profiler4JError("Invalid agent option '" + key + "'");
             }
@@ -118,6 +153,8 @@ public class Config {
      * <p>
      * Notice that these rules will only take effect after the classes are redefined. For
      * the sake of consistency, this method should only be called by
+     * <p>
+     * Options not given in <code>optionsAsStr</code> assume their built-in defaults.
      * 
      * @param optionsAsStr
      * @param rulesAsStr
@@ -126,7 +163,8 @@ public class Config {
     public void parseRules(String optionsAsStr, String rulesAsStr) {
         
         lastDefaultRuleOptions = defaultRuleOptions;
-        defaultRuleOptions = Utils.parseOptions(optionsAsStr);
+        defaultRuleOptions = Utils.parseOptions(DEFAULT_OPTIONS);
+        defaultRuleOptions.putAll(Utils.parseOptions(optionsAsStr));
         
         lastRules = rules;
         rules = Utils.parseRules(rulesAsStr);
@@ -162,6 +200,184 @@ public class Config {
         return this.defaultRuleOptions;
     }
 
+    /**
+     * @return <code>true</code> if the calling context tree must be recorded
+     */
+    public boolean isCallTree() {
+        return Utils.parseBoolean(defaultRuleOptions.get(Option.CALLTREE));
+    }
+
+    /**
+     * @return <code>true</code> if some rule marks its methods as triggers, in which
+     *         case only the dynamic extent of the triggers is recorded
+     */
+    public boolean hasTriggers() {
+        if (rules == null) {
+            return false;
+        }
+        for (Rule rule : rules) {
+            if (rule.getAction() == Rule.Action.ACCEPT
+                    && rule.isBooleanOptionSet(Option.TRIGGER, this)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if some accepted method is a transaction entry point
+     */
+    public boolean hasTransactions() {
+        if (rules == null) {
+            return false;
+        }
+        for (Rule rule : rules) {
+            if (rule.getAction() == Rule.Action.ACCEPT
+                    && !"off".equals(rule.getOption(Option.TRANSACTION, this))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return maximum number of transaction keys with statistics of their own
+     */
+    public int getTransactionKeys() {
+        return Integer.parseInt(defaultRuleOptions.get(Option.TRANSACTION_KEYS));
+    }
+
+    /**
+     * @return name of the {@link TransactionKeyExtractor} class, or <code>null</code>
+     *         if none
+     */
+    public String getTransactionExtractor() {
+        String name = defaultRuleOptions.get(Option.TRANSACTION_EXTRACTOR);
+        return "none".equals(name) ? null : name;
+    }
+
+    /**
+     * @return how the statistics are broken down by thread:
+     *         {@link ThreadProfiler#THREADS_OFF}, {@link ThreadProfiler#THREADS_EACH}
+     *         or {@link ThreadProfiler#THREADS_POOL}
+     */
+    public int getThreadStats() {
+        String mode = defaultRuleOptions.get(Option.THREAD_STATS);
+        if ("thread".equals(mode)) {
+            return ThreadProfiler.THREADS_EACH;
+        }
+        if ("pool".equals(mode)) {
+            return ThreadProfiler.THREADS_POOL;
+        }
+        return ThreadProfiler.THREADS_OFF;
+    }
+
+    /**
+     * @return comma-separated list of thread name patterns that name the pools of
+     *         threads, or <code>null</code> if none
+     */
+    public String getThreadPools() {
+        String pools = defaultRuleOptions.get(Option.THREAD_POOLS);
+        return "none".equals(pools) ? null : pools;
+    }
+
+    /**
+     * @return thread filter (see {@link Option#THREAD_FILTER}), or <code>null</code> if
+     *         all threads are profiled
+     */
+    public String getThreadFilter() {
+        String filter = defaultRuleOptions.get(Option.THREAD_FILTER);
+        return "all".equals(filter) ? null : filter;
+    }
+
+    /**
+     * @return one in how many invocations of each method are timed
+     */
+    public int getTimingRate() {
+        return Integer.parseInt(defaultRuleOptions.get(Option.TIMING_RATE));
+    }
+
+    /**
+     * @return <code>true</code> if the timed invocations are chosen at random
+     */
+    public boolean isTimingRandom() {
+        return "random".equals(defaultRuleOptions.get(Option.TIMING_MODE));
+    }
+
+    /**
+     * @return <code>true</code> if the statistics are built by a background thread from
+     *         the entries and exits logged by the probes
+     */
+    public boolean isAsyncEngine() {
+        return "async".equals(defaultRuleOptions.get(Option.ENGINE));
+    }
+
+    /**
+     * @return <code>true</code> if threads must be sampled instead of instrumented
+     */
+    public boolean isSampling() {
+        return Utils.parseBoolean(defaultRuleOptions.get(Option.SAMPLING));
+    }
+
+    /**
+     * @return time between samples in milliseconds
+     */
+    public long getSamplingInterval() {
+        return Long.parseLong(defaultRuleOptions.get(Option.SAMPLING_INTERVAL));
+    }
+
+    /**
+     * @return what to do with the probes of methods that are too short to be timed:
+     *         {@link ThreadProfiler#PROBE_TIMED} (nothing),
+     *         {@link ThreadProfiler#PROBE_COUNT_ONLY} or
+     *         {@link ThreadProfiler#PROBE_REMOVED}
+     */
+    public int getDemotionMode() {
+        String mode = defaultRuleOptions.get(Option.DEMOTE);
+        if ("count".equals(mode)) {
+            return ThreadProfiler.PROBE_COUNT_ONLY;
+        }
+        if ("remove".equals(mode)) {
+            return ThreadProfiler.PROBE_REMOVED;
+        }
+        return ThreadProfiler.PROBE_TIMED;
+    }
+
+    /**
+     * @return average time per call in nanoseconds below which a method may be demoted,
+     *         or <code>0</code> to derive it from the overhead of the probes
+     */
+    public long getDemotionTime() {
+        String time = defaultRuleOptions.get(Option.DEMOTE_TIME);
+        return "auto".equals(time) ? 0 : Long.parseLong(time);
+    }
+
+    /**
+     * @return calls per second above which a method may be demoted
+     */
+    public long getDemotionRate() {
+        return Long.parseLong(defaultRuleOptions.get(Option.DEMOTE_RATE));
+    }
+
+    /**
+     * @return clock used to measure the times: {@link ThreadProfiler#CLOCK_WALL},
+     *         {@link ThreadProfiler#CLOCK_CPU}, {@link ThreadProfiler#CLOCK_USER} or
+     *         {@link ThreadProfiler#CLOCK_BOTH}
+     */
+    public int getClock() {
+        String clock = defaultRuleOptions.get(Option.CLOCK);
+        if ("cpu".equals(clock)) {
+            return ThreadProfiler.CLOCK_CPU;
+        }
+        if ("user".equals(clock)) {
+            return ThreadProfiler.CLOCK_USER;
+        }
+        if ("both".equals(clock)) {
+            return ThreadProfiler.CLOCK_BOTH;
+        }
+        return ThreadProfiler.CLOCK_WALL;
+    }
+
     /**
      * @return Returns the dumpClasses.
      */
@@ -215,6 +431,98 @@ public class Config {
         return this.saveSnapshotOnExit;
     }
 
+    /**
+     * @return file with the rules applied when the agent starts (see
+     *         {@link #readRulesFile()}), or <code>null</code> if none
+     */
+    public File getRulesFile() {
+        return this.rulesFile;
+    }
+
+    /**
+     * Reads the rules file. Lines starting with <code>#</code> are comments, lines
+     * starting with <code>-</code> hold default rule options and the other ones hold
+     * one rule each, as in <code>com.acme.*(*) : accept</code>.
+     * 
+     * @return default rule options and rules, in the format taken by
+     *         {@link #parseRules(String, String)}
+     * @throws IOException
+     */
+    public String[] readRulesFile() throws IOException {
+        StringBuilder options = new StringBuilder();
+        StringBuilder rules = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(rulesFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                StringBuilder sb = line.startsWith("-") ? options : rules;
+                if (sb.length() > 0) {
+                    sb.append(sb == options ? " " : "; ");
+                }
+                sb.append(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return new String[]{options.toString(), rules.toString()};
+    }
+
+    /**
+     * @return directory where the flight recorder writes snapshots, or
+     *         <code>null</code> if it is disabled
+     */
+    public File getRecorderDir() {
+        return this.recorderDir;
+    }
+
+    /**
+     * @return time between the snapshots of the flight recorder, in seconds
+     */
+    public int getRecorderInterval() {
+        return this.recorderInterval;
+    }
+
+    /**
+     * @return time the flight recorder keeps its snapshots, in minutes
+     */
+    public int getRecorderRetention() {
+        return this.recorderRetention;
+    }
+
+    /**
+     * @return maximum number of snapshots kept by the flight recorder
+     */
+    public int getRecorderMaxFiles() {
+        return this.recorderMaxFiles;
+    }
+
+    /**
+     * @return <code>true</code> if each snapshot of the flight recorder holds a single
+     *         period
+     */
+    public boolean isRecorderDelta() {
+        return this.recorderDelta;
+    }
+
+    /**
+     * @return directory where the entries and exits of each thread are traced, or
+     *         <code>null</code> if tracing is disabled (see {@link TraceBuffer})
+     */
+    public File getTraceDir() {
+        return this.traceDir;
+    }
+
+    /**
+     * @return size of the trace buffer of each thread, in kilobytes
+     */
+    public int getTraceSize() {
+        return this.traceSize;
+    }
+
     /**
      * @return Returns the traceAllocations.
      */
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import static java.lang.String.format;
+import static net.sf.profiler4j.agent.Log.print;
+import static net.sf.profiler4j.agent.ThreadProfiler.globalLock;
+
+/**
+ * Daemon thread that periodically looks for methods so short and so frequently called
+ * that the cost of timing them dominates their own cost, and demotes their probes (see
+ * {@link ThreadProfiler#demote(int, int)}).
+ * <p>
+ * A method is demoted when, during the last period, it was called at least
+ * <code>minRate</code> times per second and each call took less than
+ * <code>maxTime</code> nanoseconds on average. Unless configured, <code>maxTime</code>
+ * is a multiple of the probe overhead measured by {@link ThreadProfiler#calibrate()},
+ * so that the criterion holds on machines where the probes cost more or less.
+ * <p>
+ * Depending on the mode, the method is either counted only or has its instrumentation
+ * removed by redefining its class.
+ * <p>
+ * A new demoter is created for each profiling session.
+ * 
+ * @see Config#getDemotionMode()
+ */
+class Demoter extends Thread {
+
+    private static final long PERIOD = 1000;
+    /**
+     * Threshold, as a multiple of the probe overhead, used when none is configured.
+     */
+    private static final int PROBE_COST_FACTOR = 10;
+    /**
+     * Threshold in nanoseconds used when none is configured and the probe overhead was
+     * not measured.
+     */
+    private static final long DEFAULT_MAX_TIME = 1000;
+
+    private final int mode;
+    private final long maxTime;
+    private final long minRate;
+    private volatile boolean running = true;
+    private long[] lastHits = new long[0];
+    private long[] lastTimes = new long[0];
+
+    /**
+     * @param mode either {@link ThreadProfiler#PROBE_COUNT_ONLY} or
+     *            {@link ThreadProfiler#PROBE_REMOVED}
+     * @param maxTime maximum average time of a call in nanoseconds, or <code>0</code>
+     *            to use a multiple of the probe overhead measured for the session
+     * @param minRate minimum number of calls per second
+     */
+    public Demoter(int mode, long maxTime, long minRate) {
+        super("PROFILER4J_DEMOTER");
+        this.mode = mode;
+        if (maxTime == 0) {
+            double cost = ThreadProfiler.getProbeCost();
+            maxTime = cost > 0 ? Math.round(cost * PROBE_COST_FACTOR) : DEFAULT_MAX_TIME;
+        }
+        this.maxTime = maxTime;
+        this.minRate = minRate;
+        setDaemon(true);
+    }
+
+    /**
+     * Asks the demoter to stop. No methods are demoted after this method returns as long
+     * as it is called with the global lock held.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        print(1, format("Demoter started (%d ns/call, %d calls/s)", maxTime, minRate));
+        try {
+            long last = System.nanoTime();
+            while (running) {
+                try {
+                    Thread.sleep(PERIOD);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                check(now - last);
+                last = now;
+            }
+        } catch (Throwable any) {
+            print(0, "Demoter stopped due to error", any);
+        }
+        print(1, "Demoter stopped");
+    }
+
+    /**
+     * Demotes the methods that match the criteria in the last period.
+     * 
+     * @param elapsed duration of the last period in nanoseconds
+     */
+    private void check(long elapsed) {
+        int n = ThreadProfiler.getMethodCount();
+        long[] hits = new long[n];
+        long[] times = new long[n];
+        ThreadProfiler.peekStatistics(hits, times);
+        for (int i = 0; i < Math.min(n, lastHits.length); i++) {
+            long calls = hits[i] - lastHits[i];
+            long time = times[i] - lastTimes[i];
+            // a reset makes the deltas negative
+            if (calls <= 0 || time < 0
+                    || ThreadProfiler.getProbeMode(i) != ThreadProfiler.PROBE_TIMED) {
+                continue;
+            }
+            long rate = calls * 1000000000L / elapsed;
+            if (rate >= minRate && time / calls < maxTime) {
+                demote(i, rate, time / calls);
+            }
+        }
+        lastHits = hits;
+        lastTimes = times;
+    }
+
+    private void demote(int index, long rate, long avgTime) {
+        synchronized (globalLock) {
+            if (!running) {
+                return;
+            }
+            String name = ThreadProfiler.demote(index, mode);
+            if (name == null) {
+                return;
+            }
+            print(1, format("Demoted %s (%d calls/s, %d ns/call)", name, rate, avgTime));
+            if (mode == ThreadProfiler.PROBE_REMOVED) {
+                Agent.removeInstrumentation(name);
+            }
+        }
+    }
+}
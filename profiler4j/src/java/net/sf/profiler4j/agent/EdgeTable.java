@@ -0,0 +1,202 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table that holds the time spent by methods in each one of their
+ * callees, keyed by the pair (caller, callee) of method indexes. The number of
+ * instrumented calls made by the callees (their descendants) is kept as well, so that
+ * the overhead of their probes can be compensated.
+ * <p>
+ * Updates do not allocate unless the table needs to grow. Instances are not thread-safe:
+ * each one is supposed to be written by a single thread. Other threads may read it
+ * through {@link #mergeInto(EdgeTable)}, in which case the values read may be slightly
+ * out of date.
+ * 
+ * @see ThreadProfiler
+ */
+class EdgeTable {
+
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys;
+    private long[] times;
+    private int[] counts;
+    private long[] descendants;
+    private int size;
+    private int threshold;
+
+    public EdgeTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds one call from a method to another.
+     * 
+     * @param caller index of the caller method
+     * @param callee index of the callee method
+     * @param time time spent in the callee
+     * @param descendantCalls number of instrumented calls made by the callee
+     */
+    public void add(int caller, int callee, long time, long descendantCalls) {
+        add(key(caller, callee), time, 1, descendantCalls);
+    }
+
+    /**
+     * Adds the statistics of this table to another.
+     * 
+     * @param target table to update
+     */
+    public void mergeInto(EdgeTable target) {
+        long[] keys_ = keys;
+        long[] times_ = times;
+        int[] counts_ = counts;
+        long[] descendants_ = descendants;
+        int n = Math.min(Math.min(keys_.length, times_.length), Math.min(counts_.length,
+                descendants_.length));
+        for (int i = 0; i < n; i++) {
+            long k = keys_[i];
+            if (k != EMPTY) {
+                target.add(k, times_[i], counts_[i], descendants_[i]);
+            }
+        }
+    }
+
+    /**
+     * Multiplies the times and descendant calls of the edges by a ratio that depends on
+     * the callee.
+     * 
+     * @param ratios ratio of each callee, indexed by method index
+     */
+    public void scale(double[] ratios) {
+        for (int i = 0; i < keys.length; i++) {
+            long k = keys[i];
+            if (k == EMPTY) {
+                continue;
+            }
+            int callee = (int) k;
+            if (callee >= 0 && callee < ratios.length && ratios[callee] != 1) {
+                times[i] = Math.round(times[i] * ratios[callee]);
+                descendants[i] = Math.round(descendants[i] * ratios[callee]);
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct edges
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return capacity of the table; slots are numbered from 0 to
+     *         <code>capacity() - 1</code>
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot slot number
+     * @return <code>true</code> if the slot holds an edge
+     */
+    public boolean isUsed(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    public int getCaller(int slot) {
+        return (int) (keys[slot] >>> 32);
+    }
+
+    public int getCallee(int slot) {
+        return (int) keys[slot];
+    }
+
+    public long getTime(int slot) {
+        return times[slot];
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    public long getDescendantCalls(int slot) {
+        return descendants[slot];
+    }
+
+    private static long key(int caller, int callee) {
+        return ((long) caller << 32) | (callee & 0xffffffffL);
+    }
+
+    private void add(long k, long time, int count, long descendantCalls) {
+        int mask = keys.length - 1;
+        int i = hash(k) & mask;
+        while (true) {
+            long slotKey = keys[i];
+            if (slotKey == k) {
+                times[i] += time;
+                counts[i] += count;
+                descendants[i] += descendantCalls;
+                return;
+            }
+            if (slotKey == EMPTY) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size >= threshold) {
+            rehash(keys.length << 1);
+            add(k, time, count, descendantCalls);
+            return;
+        }
+        times[i] = time;
+        counts[i] = count;
+        descendants[i] = descendantCalls;
+        keys[i] = k;
+        size++;
+    }
+
+    private static int hash(long k) {
+        long h = k * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        long[] newKeys = new long[capacity];
+        Arrays.fill(newKeys, EMPTY);
+        times = new long[capacity];
+        counts = new int[capacity];
+        descendants = new long[capacity];
+        keys = newKeys;
+        threshold = capacity - (capacity >> 2);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldTimes = times;
+        int[] oldCounts = counts;
+        long[] oldDescendants = descendants;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                add(oldKeys[i], oldTimes[i], oldCounts[i], oldDescendants[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import static net.sf.profiler4j.agent.Log.print;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Daemon thread that periodically writes snapshots into a directory, so that the
+ * profiling data of the last hours can be opened in the console even if none was
+ * attached.
+ * <p>
+ * In delta mode each file holds the statistics of one period only (see
+ * {@link ThreadProfiler#createDeltaSnapshot(OutputStream)}), which leaves the
+ * statistics seen by a console untouched; otherwise each file holds all statistics
+ * since the last reset.
+ * <p>
+ * A delta file only holds the invocations that threads have handed over, which they
+ * do the next time they record a method after a snapshot starts. A thread that stays
+ * blocked after some work (e.g., a pool thread waiting for tasks) keeps its last
+ * invocations until it runs instrumented code again, so they appear in a later file,
+ * or in none if it never does. Invocations still active are not included either;
+ * they are counted in the file written after they exit.
+ * <p>
+ * Files are named after the time they were written, in the form
+ * <code>yyyyMMdd_HHmmss_SSS-profiler4j.ser</code>, and renamed only when complete. The
+ * oldest files are deleted when they exceed the retention time or the maximum number
+ * of files.
+ * 
+ * @see Config#getRecorderDir()
+ */
+class FlightRecorder extends Thread {
+
+    public static final String SUFFIX = "-profiler4j.ser";
+
+    private final File dir;
+    private final long interval;
+    private final long retention;
+    private final int maxFiles;
+    private final boolean delta;
+    private volatile boolean running = true;
+
+    /**
+     * @param dir directory of the snapshot files
+     * @param interval time between snapshots in milliseconds
+     * @param retention time the files are kept in milliseconds
+     * @param maxFiles maximum number of files kept
+     * @param delta whether each file holds only the statistics of its period
+     */
+    public FlightRecorder(File dir, long interval, long retention, int maxFiles,
+                          boolean delta) {
+        super("PROFILER4J_RECORDER");
+        this.dir = dir;
+        this.interval = interval;
+        this.retention = retention;
+        this.maxFiles = maxFiles;
+        this.delta = delta;
+        setDaemon(true);
+    }
+
+    /**
+     * Asks the recorder to stop. A snapshot being written is completed.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            print(0, "Flight recorder could not create " + dir.getAbsolutePath());
+            return;
+        }
+        print(0, "Flight recorder writing to " + dir.getAbsolutePath() + " every "
+                + (interval / 1000) + "s");
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            record();
+        }
+        print(1, "Flight recorder stopped");
+    }
+
+    /**
+     * Writes a snapshot and deletes the files that are no longer kept.
+     */
+    public synchronized void record() {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS");
+        String name = fmt.format(new Date()) + SUFFIX;
+        File tmp = new File(dir, name + ".tmp");
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                if (delta) {
+                    ThreadProfiler.createDeltaSnapshot(os);
+                } else {
+                    ThreadProfiler.createSnapshot(os);
+                }
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(new File(dir, name))) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            print(1, "Flight recorder wrote " + name);
+        } catch (Exception e) {
+            print(0, "Flight recorder could not write snapshot", e);
+            tmp.delete();
+        }
+        prune();
+    }
+
+    private void prune() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        int count = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) {
+                count++;
+            }
+        }
+        long oldest = System.currentTimeMillis() - retention;
+        for (File f : files) {
+            if (!f.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            // names sort by time, so the oldest files come first
+            if (count > maxFiles || f.lastModified() < oldest) {
+                if (f.delete()) {
+                    count--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+/**
+ * Log-bucketed histogram of invocation times, kept as a plain array of counts.
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} buckets of the same width, so the
+ * bounds of a bucket differ by at most 25%. Times of 2<sup>41</sup> nanoseconds (about
+ * 36 minutes) and longer all fall in the last bucket. Histograms of the same method can
+ * be merged by adding their counts.
+ * 
+ * @see ThreadProfiler
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets per power of two.
+     */
+    public static final int SUB_BUCKETS = 4;
+    /**
+     * Length of a histogram.
+     */
+    public static final int BUCKETS = 160;
+
+    private LatencyHistogram() {
+        // static methods only
+    }
+
+    /**
+     * Gets the bucket of a time.
+     * 
+     * @param time time in nanoseconds
+     * @return index of the bucket
+     */
+    public static int bucket(long time) {
+        if (time < SUB_BUCKETS) {
+            return time < 0 ? 0 : (int) time;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(time);
+        int b = ((e - 1) << 2) + (int) ((time >>> (e - 2)) & (SUB_BUCKETS - 1));
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    /**
+     * @param bucket index of a bucket
+     * @return lowest time in nanoseconds that falls in the bucket
+     */
+    public static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int e = (bucket >> 2) + 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (e - 2);
+    }
+
+    /**
+     * @param bucket index of a bucket
+     * @return highest time in nanoseconds that falls in the bucket
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * Adds the counts of a histogram to another one.
+     * 
+     * @param source histogram to read
+     * @param target histogram to update
+     */
+    public static void merge(long[] source, long[] target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    /**
+     * Estimates the coefficient of variation (standard deviation divided by the mean)
+     * of the times recorded in a histogram, taking the middle of each bucket as the
+     * time of its entries.
+     * 
+     * @param histogram histogram to read
+     * @param max highest recorded time, which limits the middle of the last buckets
+     * @return coefficient of variation, or <code>0</code> if the histogram is empty
+     */
+    public static double variation(long[] histogram, long max) {
+        double n = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            double upper = Math.min(upperBound(i), max);
+            double mid = Math.min((lowerBound(i) + upper) / 2, max);
+            n += histogram[i];
+            sum += histogram[i] * mid;
+            sumSquares += histogram[i] * mid * mid;
+        }
+        if (n == 0 || sum == 0) {
+            return 0;
+        }
+        double mean = sum / n;
+        return Math.sqrt(Math.max(0, sumSquares / n - mean * mean)) / mean;
+    }
+
+    /**
+     * Estimates a percentile of the times recorded in a histogram as the upper bound
+     * of the bucket where it falls.
+     * 
+     * @param histogram histogram to read
+     * @param fraction fraction of the times that are below the result (between 0 and 1)
+     * @param max highest recorded time, which limits the result
+     * @return time in nanoseconds, or <code>0</code> if the histogram is empty
+     */
+    public static long percentile(long[] histogram, double fraction, long max) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -47,7 +47,7 @@ public class Rule {
          * <li><code>public</code>: only public methods
          * </ul>
          */
-        ACCESS,
+        ACCESS(false),
         /**
          * Option that tells the instrumenter to skip methods that follow the JavaBean
          * pattern. Usually this methods do nothing more than read/write local fields.
@@ -57,7 +57,174 @@ public class Rule {
          * <li><code>off</code>: skip property acessors client)
          * </ul>
          */
-        BEANPROPS
+        BEANPROPS(false),
+        /**
+         * Option that tells the profiler to capture the whole call subtree of the
+         * invocations of the matching methods that take longer than a given number of
+         * milliseconds. Only instrumented methods called during the invocation are
+         * captured.
+         * <ul>
+         * <li><code>off</code> (default): do not capture slow invocations
+         * <li><i>number</i>: threshold in milliseconds
+         * </ul>
+         */
+        SLOWCAPTURE(false),
+        /**
+         * Option that marks the matching methods as triggers. If any rule sets this
+         * option, methods are recorded only while a trigger method is active in the
+         * same thread, and calls made anywhere else cost a single test.
+         * <ul>
+         * <li><code>on</code>: record the dynamic extent of the matching methods
+         * <li><code>off</code> (default): not a trigger
+         * </ul>
+         */
+        TRIGGER(false),
+        /**
+         * Option that makes the matching methods entry points of transactions, so that
+         * the statistics of the methods they call are also kept separately for each
+         * transaction key (see {@link #TRANSACTION_KEYS}).
+         * <ul>
+         * <li><code>off</code> (default): not an entry point
+         * <li><code>name</code>: the key is the name of the entry method
+         * <li><code>arg</code><i>n</i>: the key is the string value of the argument
+         * <i>n</i> (starting at 0)
+         * <li><code>custom</code>: the key is given by the class named by
+         * {@link #TRANSACTION_EXTRACTOR}
+         * </ul>
+         */
+        TRANSACTION(false),
+        /**
+         * Session option that tells the profiler to record the calling context tree,
+         * i.e., the statistics of each distinct call path.
+         * <ul>
+         * <li><code>on</code>: record the calling context tree
+         * <li><code>off</code> (default): record only method and caller/callee
+         * statistics
+         * </ul>
+         */
+        CALLTREE(true),
+        /**
+         * Session option that replaces bytecode instrumentation by periodic sampling of
+         * the stacks of all running threads. When sampling is on no method is
+         * instrumented, regardless of the rules.
+         * <ul>
+         * <li><code>on</code>: sample the running threads
+         * <li><code>off</code> (default): instrument methods according to the rules
+         * </ul>
+         */
+        SAMPLING(true),
+        /**
+         * Session option that defines the time between samples in milliseconds (default
+         * is 10).
+         */
+        SAMPLING_INTERVAL(true),
+        /**
+         * Session option that tells the profiler to demote the probes of methods that
+         * are too short and too frequently called to be timed without distorting the
+         * results (see {@link #DEMOTE_TIME} and {@link #DEMOTE_RATE}).
+         * <ul>
+         * <li><code>off</code> (default): always time the instrumented methods
+         * <li><code>count</code>: only count the invocations of demoted methods
+         * <li><code>remove</code>: remove the instrumentation of demoted methods
+         * </ul>
+         */
+        DEMOTE(true),
+        /**
+         * Session option that defines the average time per call in nanoseconds below
+         * which a method may be demoted. The default, <code>auto</code>, is a multiple
+         * of the measured overhead of the probes, or 1000 if it was not measured.
+         */
+        DEMOTE_TIME(true),
+        /**
+         * Session option that defines the number of calls per second above which a
+         * method may be demoted (default is 10000).
+         */
+        DEMOTE_RATE(true),
+        /**
+         * Session option that defines the clock used to measure the times.
+         * <ul>
+         * <li><code>wall</code> (default): elapsed time
+         * <li><code>cpu</code>: CPU time of the thread
+         * <li><code>user</code>: user CPU time of the thread
+         * <li><code>both</code>: elapsed time, also recording the CPU time
+         * </ul>
+         * The clock is ignored when sampling.
+         */
+        CLOCK(true),
+        /**
+         * Session option that defines the maximum number of transaction keys with
+         * statistics of their own (default is 20). Keys seen after that are counted as
+         * "other".
+         */
+        TRANSACTION_KEYS(true),
+        /**
+         * Session option that names a class implementing {@link TransactionKeyExtractor}
+         * used by the entry methods with the option <code>-transaction:custom</code>
+         * (default is <code>none</code>).
+         */
+        TRANSACTION_EXTRACTOR(true),
+        /**
+         * Session option that breaks down the method statistics by thread.
+         * <ul>
+         * <li><code>off</code> (default)
+         * <li><code>thread</code>: one group per thread
+         * <li><code>pool</code>: one group per pool of threads (see
+         * {@link #THREAD_POOLS})
+         * </ul>
+         * The breakdown is ignored when sampling.
+         */
+        THREAD_STATS(true),
+        /**
+         * Session option with a comma-separated list of thread name patterns that name
+         * the pools of threads, such as <code>http-nio-*,kafka-consumer-*</code>
+         * (default is <code>none</code>). Threads not matched by any pattern are
+         * grouped by their name without the trailing digits.
+         */
+        THREAD_POOLS(true),
+        /**
+         * Session option with a comma-separated list of thread name patterns that
+         * selects the threads to profile (default is <code>all</code>). Patterns are
+         * tried in order; a pattern prefixed with <code>!</code> rejects the threads it
+         * matches and one prefixed with <code>group:</code> is matched against the
+         * thread group name. For instance, <code>!*-scheduler-*,http-*</code> profiles
+         * only the HTTP threads, except the schedulers.
+         */
+        THREAD_FILTER(true),
+        /**
+         * Session option that times only one in every N invocations of each method in
+         * each thread (default is 1, every invocation). The other invocations are only
+         * counted and the snapshots extrapolate their times. The rate is ignored when
+         * sampling.
+         */
+        TIMING_RATE(true),
+        /**
+         * Session option that tells how the timed invocations are chosen when the
+         * timing rate is greater than 1: <code>fixed</code> (default, every Nth) or
+         * <code>random</code> (one in N on average).
+         */
+        TIMING_MODE(true),
+        /**
+         * Session option that selects how invocations are recorded: <code>inline</code>
+         * (default), where each probe updates the statistics of its thread, or
+         * <code>async</code>, where probes only log the entries and exits and a
+         * background thread builds the statistics. Ignored when sampling, and when
+         * some method is a transaction entry point (see {@link #TRANSACTION}).
+         */
+        ENGINE(true);
+
+        private boolean session;
+
+        private Option(boolean session) {
+            this.session = session;
+        }
+
+        /**
+         * @return <code>true</code> if this option applies to the whole profiling
+         *         session, in which case it can only be given as a default option
+         */
+        public boolean isSession() {
+            return this.session;
+        }
     }
 
     private String pattern;
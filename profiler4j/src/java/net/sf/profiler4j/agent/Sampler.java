@@ -0,0 +1,233 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import static net.sf.profiler4j.agent.Log.print;
+import static net.sf.profiler4j.agent.ThreadProfiler.globalLock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Daemon thread that periodically captures the stack of all running threads and records
+ * the samples as method statistics (see {@link ThreadProfiler#recordSample}).
+ * <p>
+ * Sampled methods are registered on demand with names in the form
+ * <code>package.Class.method(...)</code>, as the stack traces carry no parameter types.
+ * Each sample accounts for the time elapsed since the previous one, so the hits of a
+ * method are the number of samples in which it was active.
+ * <p>
+ * A new sampler is created for each profiling session.
+ *
+ * @see Config#isSampling()
+ */
+class Sampler extends Thread {
+
+    private final long interval;
+    private volatile boolean running = true;
+    private final Map<String, Integer> methodIds = new HashMap<String, Integer>();
+    /**
+     * Result of the thread filter for each thread seen (see
+     * {@link ThreadProfiler#setThreadFilter(String)}).
+     */
+    private final Map<Thread, Boolean> accepted = new WeakHashMap<Thread, Boolean>();
+    private int[] stack = new int[128];
+
+    /**
+     * @param interval time between samples in milliseconds
+     */
+    public Sampler(long interval) {
+        super("PROFILER4J_SAMPLER");
+        this.interval = interval;
+        setDaemon(true);
+    }
+
+    /**
+     * Asks the sampler to stop. No samples are recorded after this method returns as
+     * long as it is called with the global lock held.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        print(1, "Sampler started (interval " + interval + "ms)");
+        try {
+            long last = System.nanoTime();
+            while (running) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                sample(now - last);
+                last = now;
+            }
+        } catch (Throwable any) {
+            print(0, "Sampler stopped due to error", any);
+        }
+        print(1, "Sampler stopped");
+    }
+
+    private void sample(long time) {
+        Map<Thread, StackTraceElement[]> traces = Thread.getAllStackTraces();
+        for (Map.Entry<Thread, StackTraceElement[]> e : traces.entrySet()) {
+            Thread t = e.getKey();
+            StackTraceElement[] trace = e.getValue();
+            if (t == this || t == Agent.server || trace.length == 0
+                    || t.getState() != Thread.State.RUNNABLE || !isAccepted(t)) {
+                continue;
+            }
+            if (stack.length < trace.length) {
+                stack = new int[trace.length];
+            }
+            int n = trace.length;
+            for (int i = 0; i < n; i++) {
+                // stack traces start at the innermost frame
+                int id = getMethodId(trace[n - 1 - i]);
+                if (id == -1) {
+                    return;
+                }
+                stack[i] = id;
+            }
+            ThreadProfiler.recordSample(stack, n, time);
+        }
+    }
+
+    /**
+     * Samples the running threads for a while and ranks the methods that could be
+     * instrumented. Half of the returned methods are the ones most often found at the top
+     * of the stack (time spent in non-instrumentable code such as the JDK is charged to
+     * the innermost instrumentable caller), the others are the ones most often found
+     * anywhere in the stack.
+     * <p>
+     * The statistics of the current session are not affected.
+     * 
+     * @param duration sampling time in milliseconds
+     * @param interval time between samples in milliseconds
+     * @param maxMethods maximum number of methods to return
+     * @return fully qualified method names (without parameters), hottest first
+     * @throws InterruptedException
+     */
+    public static List<String> findHotMethods(long duration, long interval, int maxMethods)
+        throws InterruptedException {
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        Set<String> seen = new HashSet<String>();
+        long deadline = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(interval);
+            Map<Thread, StackTraceElement[]> traces = Thread.getAllStackTraces();
+            for (Map.Entry<Thread, StackTraceElement[]> e : traces.entrySet()) {
+                Thread t = e.getKey();
+                if (t == Thread.currentThread() || t == Agent.server || t instanceof Sampler
+                        || t.getState() != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                seen.clear();
+                boolean top = true;
+                for (StackTraceElement frame : e.getValue()) {
+                    String cn = frame.getClassName();
+                    if (Transformer.rejectByDefault(cn)
+                            || frame.getMethodName().startsWith("<")) {
+                        continue;
+                    }
+                    String name = cn + "." + frame.getMethodName();
+                    int[] c = counts.get(name);
+                    if (c == null) {
+                        c = new int[2];
+                        counts.put(name, c);
+                    }
+                    if (top) {
+                        c[0]++;
+                        top = false;
+                    }
+                    if (seen.add(name)) {
+                        c[1]++;
+                    }
+                }
+            }
+        }
+        List<String> bySelf = new ArrayList<String>(counts.keySet());
+        Collections.sort(bySelf, new Comparator<String>() {
+            public int compare(String n1, String n2) {
+                return counts.get(n2)[0] - counts.get(n1)[0];
+            }
+        });
+        List<String> byTotal = new ArrayList<String>(counts.keySet());
+        Collections.sort(byTotal, new Comparator<String>() {
+            public int compare(String n1, String n2) {
+                return counts.get(n2)[1] - counts.get(n1)[1];
+            }
+        });
+        List<String> hot = new ArrayList<String>();
+        for (String name : bySelf) {
+            if (hot.size() >= maxMethods / 2 || counts.get(name)[0] == 0) {
+                break;
+            }
+            hot.add(name);
+        }
+        for (String name : byTotal) {
+            if (hot.size() >= maxMethods) {
+                break;
+            }
+            if (!hot.contains(name)) {
+                hot.add(name);
+            }
+        }
+        return hot;
+    }
+
+    /**
+     * @return whether the thread filter accepts a thread, cached for the session
+     */
+    private boolean isAccepted(Thread t) {
+        Boolean a = accepted.get(t);
+        if (a == null) {
+            a = ThreadProfiler.isThreadAccepted(t);
+            accepted.put(t, a);
+        }
+        return a;
+    }
+
+    /**
+     * Gets (registering if necessary) the global id of a sampled method.
+     * 
+     * @param frame stack frame
+     * @return global method id or <code>-1</code> if the sampler was stopped
+     */
+    private int getMethodId(StackTraceElement frame) {
+        String name = frame.getClassName() + "." + frame.getMethodName() + "(...)";
+        Integer id = methodIds.get(name);
+        if (id == null) {
+            synchronized (globalLock) {
+                if (!running) {
+                    return -1;
+                }
+                id = ThreadProfiler.newMethod(name);
+            }
+            methodIds.put(name, id);
+        }
+        return id;
+    }
+}
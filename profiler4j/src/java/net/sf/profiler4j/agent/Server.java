@@ -42,6 +42,9 @@ public class Server extends Thread {
     public static final int CMD_GET_THREAD_INFO = 9;
 
     public static final int CMD_SET_THREAD_MONITORING = 10;
+    public static final int CMD_AUTO_RULES = 11;
+    public static final int CMD_GET_SLOW_INVOCATIONS = 12;
+    public static final int CMD_SET_METHODS_ENABLED = 13;
 
     public static final int COMMAND_ACK = 0x00;
     public static final int STATUS_ERROR = 0x01;
@@ -124,30 +127,36 @@ public class Server extends Thread {
                     break;
                 case CMD_APPLY_RULES :
                     out.writeInt(COMMAND_ACK);
-                    String opts = in.readUTF();
-                    String rules = in.readUTF();
-                    if (config.isWaitConnection() && config.getRules() == null) {
-                        config.parseRules(opts, rules);
-                        out.writeInt(0);
-                    } else {
-                        Agent.reloadClasses(opts, rules, new Agent.ReloadCallBack() {
-                            public void setMaxValue(int n) throws Exception {
-                                out.writeInt(n);
-                                out.flush();
-                            }
-                            public void setValue(int n) throws Exception {
-                                if (n % 50 == 0) {
-                                    out.writeInt(n);
-                                    out.flush();
-                                }
-                            }
-                        });
-                    }
-                    out.writeInt(-1);
+                    applyRules(out, in.readUTF(), in.readUTF());
+                    break;
+                case CMD_AUTO_RULES :
+                    out.writeInt(COMMAND_ACK);
+                    out.flush();
+                    String autoOpts = in.readUTF();
+                    int duration = in.readInt();
+                    int maxMethods = in.readInt();
+                    List<String> hot = Agent.filterRuleMethods(Sampler
+                        .findHotMethods(duration, 10, maxMethods));
+                    print(0, "Generated rules for " + hot.size() + " hot methods");
+                    writeStringList(out, hot);
+                    applyRules(out, autoOpts + " -sampling:off", Agent.makeRules(hot));
+                    break;
+                case CMD_GET_SLOW_INVOCATIONS :
+                    out.writeInt(COMMAND_ACK);
+                    SlowInvocations.write(out);
+                    out.flush();
+                    break;
+                case CMD_SET_METHODS_ENABLED :
+                    out.writeInt(COMMAND_ACK);
                     out.flush();
-                    synchronized (Agent.waitConnectionLock) {
-                        Agent.waitConnectionLock.notifyAll();
+                    boolean enabled = in.readBoolean();
+                    int changed = 0;
+                    for (String pattern : readStringList(in)) {
+                        changed += ThreadProfiler.setEnabled(pattern, enabled);
                     }
+                    print(1, (enabled ? "Enabled " : "Disabled ") + changed + " methods");
+                    out.writeInt(changed);
+                    out.flush();
                     break;
                 case CMD_LIST_CLASSES :
                     out.writeInt(COMMAND_ACK);
@@ -216,6 +225,35 @@ public class Server extends Thread {
             }
     }
 
+    /**
+     * Applies a new set of rules, reporting the progress of the class redefinition.
+     */
+    private void applyRules(final ObjectOutputStream out, String opts, String rules)
+        throws Exception {
+        if (config.isWaitConnection() && config.getRules() == null) {
+            Agent.applyRules(opts, rules);
+            out.writeInt(0);
+        } else {
+            Agent.reloadClasses(opts, rules, new Agent.ReloadCallBack() {
+                public void setMaxValue(int n) throws Exception {
+                    out.writeInt(n);
+                    out.flush();
+                }
+                public void setValue(int n) throws Exception {
+                    if (n % 50 == 0) {
+                        out.writeInt(n);
+                        out.flush();
+                    }
+                }
+            });
+        }
+        out.writeInt(-1);
+        out.flush();
+        synchronized (Agent.waitConnectionLock) {
+            Agent.waitConnectionLock.notifyAll();
+        }
+    }
+
     // ///////////////////////////////////////////////////////////////////////////////////
     // Utility methods
     // ///////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded buffer with the call subtrees of slow invocations of the methods
+ * instrumented with a capture threshold (see {@link Rule.Option#SLOWCAPTURE}). Only the
+ * last {@link #MAX_RECORDS} invocations are kept.
+ * <p>
+ * Subtrees are captured by {@link ThreadProfiler} while the invocation is active and
+ * added here only if the invocation exceeds the threshold.
+ * 
+ * @see Server#CMD_GET_SLOW_INVOCATIONS
+ */
+class SlowInvocations {
+
+    /**
+     * Maximum number of invocations kept.
+     */
+    public static final int MAX_RECORDS = 64;
+
+    private static final LinkedList<Record> records = new LinkedList<Record>();
+
+    /**
+     * Adds a captured invocation, discarding the oldest one if the buffer is full.
+     * 
+     * @param record invocation to add
+     */
+    public static void add(Record record) {
+        synchronized (records) {
+            if (records.size() == MAX_RECORDS) {
+                records.removeFirst();
+            }
+            records.addLast(record);
+        }
+    }
+
+    /**
+     * Discards all captured invocations.
+     */
+    public static void clear() {
+        synchronized (records) {
+            records.clear();
+        }
+    }
+
+    /**
+     * Writes the captured invocations, oldest first. Each one is written as the thread
+     * name, the time it ended, the threshold, the number of invocations not captured
+     * and the nodes of the subtree. Each node is written as its parent node, the method
+     * name, the start time relative to the root and the net time. The parent of the
+     * root is <code>-1</code>.
+     * 
+     * @param out output to write
+     * @throws IOException
+     */
+    public static void write(DataOutput out) throws IOException {
+        List<Record> copy;
+        synchronized (records) {
+            copy = new ArrayList<Record>(records);
+        }
+        out.writeInt(copy.size());
+        for (Record r : copy) {
+            out.writeUTF(r.threadName);
+            out.writeLong(r.time);
+            out.writeLong(r.threshold);
+            out.writeInt(r.skipped);
+            out.writeInt(r.names.length);
+            for (int i = 0; i < r.names.length; i++) {
+                out.writeInt(r.parents[i]);
+                out.writeUTF(r.names[i]);
+                out.writeLong(r.starts[i]);
+                out.writeLong(r.times[i]);
+            }
+        }
+    }
+
+    /**
+     * Call subtree of one slow invocation. Nodes are numbered in the order the methods
+     * were entered, so node 0 is the root and parents always precede their children.
+     */
+    static class Record {
+
+        public String threadName;
+        /**
+         * Time when the invocation ended, in milliseconds since the epoch.
+         */
+        public long time;
+        public long threshold;
+        /**
+         * Number of invocations not captured because the subtree was too large.
+         */
+        public int skipped;
+        public int[] parents;
+        public String[] names;
+        /**
+         * Start time of each node in nanoseconds, relative to the root.
+         */
+        public long[] starts;
+        /**
+         * Net time of each node in nanoseconds.
+         */
+        public long[] times;
+
+        public Record(String threadName, long threshold, int skipped, int[] parents,
+                      String[] names, long[] starts, long[] times) {
+            this.threadName = threadName;
+            this.time = System.currentTimeMillis();
+            this.threshold = threshold;
+            this.skipped = skipped;
+            this.parents = parents;
+            this.names = names;
+            this.starts = starts;
+            this.times = times;
+        }
+    }
+}
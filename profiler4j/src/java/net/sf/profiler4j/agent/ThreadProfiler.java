@@ -17,15 +17,24 @@ import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Enumeration;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.WeakHashMap;
-import java.util.concurrent.locks.ReentrantLock;
-
-import net.sf.profiler4j.agent.Agent.ReloadCallBack;
-import net.sf.profiler4j.agent.CFlow.ThreadLocalMethod;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * The class <code>ThreadProfiler</code> is responsible for measuring the time spent in
@@ -51,67 +60,403 @@ public class ThreadProfiler {
      * there is no assumption of backwards compatiblity. This is expected to change only
      * in drastic cases.
      */
-    public static final int SNAPSHOT_PROTOCOL_VERSION = 0x00000001;
+    public static final int SNAPSHOT_PROTOCOL_VERSION = 0x00000003;
     /**
      * Type of snaphot that contains the statistics of methods timings. Currently this is
      * the only type supported.
      */
     public static final int SNAPSHOT_TYPE_CALLTRACE = 0x00000001;
+    /**
+     * Optional section that follows the method statistics and contains the calling
+     * context tree (see {@link CallTree}).
+     */
+    public static final int SNAPSHOT_TYPE_CALLTREE = 0x00000002;
+    /**
+     * Optional section that lists the methods whose probes were demoted or disabled
+     * (see {@link #PROBE_COUNT_ONLY}, {@link #PROBE_REMOVED} and
+     * {@link #PROBE_DISABLED}).
+     */
+    public static final int SNAPSHOT_TYPE_DEMOTED = 0x00000003;
+    /**
+     * Optional section with the net times of methods and the times of their children
+     * after the estimated overhead of the probes has been subtracted.
+     */
+    public static final int SNAPSHOT_TYPE_COMPENSATED = 0x00000004;
+    /**
+     * Optional section with the number of invocations that were not recorded because
+     * the call stack of their threads was too deep (see {@link #MAX_CALL_DEPTH}).
+     */
+    public static final int SNAPSHOT_TYPE_OVERFLOW = 0x00000005;
+    /**
+     * Optional section with the clock used to measure the times (see
+     * {@link #CLOCK_WALL}), followed by the CPU time of each method when the clock is
+     * {@link #CLOCK_BOTH}.
+     */
+    public static final int SNAPSHOT_TYPE_CLOCK = 0x00000006;
+    /**
+     * Optional section with the longest invocation time and the latency histogram of
+     * each method (see {@link LatencyHistogram}).
+     */
+    public static final int SNAPSHOT_TYPE_HISTOGRAM = 0x00000007;
+    /**
+     * Optional section with the statistics of the methods in each transaction (see
+     * {@link Transactions}).
+     */
+    public static final int SNAPSHOT_TYPE_TRANSACTIONS = 0x00000008;
+    /**
+     * Optional section with the statistics of the methods in each thread or pool of
+     * threads (see {@link #setThreadStats(int, String)}).
+     */
+    public static final int SNAPSHOT_TYPE_THREADS = 0x00000009;
+    /**
+     * Optional section with the timing rate (see {@link #setTimingRate(int)}) followed
+     * by the number of timed invocations of each method.
+     */
+    public static final int SNAPSHOT_TYPE_TIMING = 0x0000000A;
+    /**
+     * Optional section, with no content, that marks a snapshot holding only the
+     * invocations handed over since the previous delta snapshot (see
+     * {@link #createDeltaSnapshot(OutputStream)}).
+     */
+    public static final int SNAPSHOT_TYPE_DELTA = 0x0000000B;
+    /**
+     * Optional section with the number of threads whose buffers were read while they
+     * were running (see {@link Statistics#inPlaceThreads}).
+     */
+    public static final int SNAPSHOT_TYPE_IN_PLACE = 0x0000000C;
+    /**
+     * Marks the end of the optional sections of a snapshot.
+     */
+    public static final int SNAPSHOT_END = 0x00000000;
+
+    /**
+     * Probe mode of methods whose invocations are fully timed.
+     */
+    public static final int PROBE_TIMED = 0;
+    /**
+     * Probe mode of demoted methods whose invocations are only counted, so their times
+     * stop growing at the moment of the demotion.
+     */
+    public static final int PROBE_COUNT_ONLY = 1;
+    /**
+     * Probe mode of demoted methods whose instrumentation was removed, so their
+     * statistics stop growing at the moment of the demotion.
+     */
+    public static final int PROBE_REMOVED = 2;
+    /**
+     * Probe mode of methods disabled from the console, whose invocations are neither
+     * timed nor counted. Unlike the demoted modes it can be undone within the session
+     * (see {@link #setEnabled(String, boolean)}).
+     */
+    public static final int PROBE_DISABLED = 3;
+
+    /**
+     * Times are measured with <code>System.nanoTime()</code> (elapsed time).
+     */
+    public static final int CLOCK_WALL = 0;
+    /**
+     * Times are measured with the CPU time of the thread (user and system).
+     */
+    public static final int CLOCK_CPU = 1;
+    /**
+     * Times are measured with the user CPU time of the thread.
+     */
+    public static final int CLOCK_USER = 2;
+    /**
+     * Times are measured as in {@link #CLOCK_WALL}, and the CPU time of the thread is
+     * recorded as well for the net time of each method.
+     */
+    public static final int CLOCK_BOTH = 3;
+
+    /**
+     * Statistics are not broken down by thread.
+     */
+    public static final int THREADS_OFF = 0;
+    /**
+     * Statistics are broken down by thread.
+     */
+    public static final int THREADS_EACH = 1;
+    /**
+     * Statistics are broken down by pool of threads (see
+     * {@link #setThreadStats(int, String)}).
+     */
+    public static final int THREADS_POOL = 2;
 
-    private static final int MAX_METHODS = 65535;
-    private static final int MAX_CALL_DEPTH = 1024;
-    private static final int INITIAL_CHILDREN_PER_METHOD = 8;
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    /**
+     * Maximum number of active methods recorded per thread. The per-thread stacks start
+     * empty and grow up to this size as needed.
+     */
+    private static final int MAX_CALL_DEPTH = 1 << 16;
+    private static final int INITIAL_CALL_DEPTH = 16;
+    private static final int CALIBRATION_ROUNDS = 50;
+    /**
+     * Maximum number of invocations kept in the captured subtree of a slow invocation.
+     */
+    private static final int MAX_CAPTURE_NODES = 4096;
+    private static final int CALIBRATION_CALLS = 2000;
 
     // /////////////////////////////////////////////////////////////////////////
     // Static members
     // /////////////////////////////////////////////////////////////////////////
 
     /**
-     * Global monitor used to implement mutual-exclusion. In the future this single
-     * monitor may be broken up into many different monitors to reduce contention.
+     * Global monitor used to implement mutual-exclusion during class transformation and
+     * session changes. It is never acquired by the recording path (see
+     * {@link #enterMethod(int)} and {@link #exitMethod(int)}).
      */
     static final Object globalLock = new Object();
     /**
-     * The session is defined from bits 0 thru 8, and represents the number of times the
-     * agent redefined the application classes. This value always starts from 0 and is
-     * increased as classes are redefined.
+     * Monitor that guards {@link #globalThreadInfos}. It is acquired only once per thread
+     * (when the thread records its first method) and for a short while when a snapshot
+     * is created.
+     */
+    private static final Object registryLock = new Object();
+    /**
+     * Monitor that serializes the creation of snapshots and guards
+     * {@link #accumulated}. Application threads never acquire it.
+     */
+    private static final Object snapshotLock = new Object();
+    /**
+     * Number of times the agent redefined the application classes. This value always
+     * starts from 0 and is increased as classes are redefined.
      */
     private static volatile int sessionId = 0;
+    /**
+     * Global id of the first method of the current session. Global ids are never reused,
+     * so any id lower than this value belongs to an older session and the recording path
+     * needs no other information to tell the sessions apart. Each session reserves at
+     * least one id, so this value identifies the session as well.
+     */
+    private static volatile int sessionBase = 0;
+    /**
+     * Incremented whenever the statistics are reset. Each thread compares this value with
+     * its own copy and discards its private statistics when they differ.
+     */
+    private static volatile int resetEpoch = 0;
+    /**
+     * Value of <code>System.nanoTime()</code> at the last reset.
+     */
+    private static volatile long resetTime = System.nanoTime();
+    /**
+     * Incremented whenever a snapshot is requested. Each thread compares this value with
+     * the epoch of its current buffer of statistics and, when they differ, hands that
+     * buffer over to {@link #retiredBuffers} and starts a new one.
+     */
+    private static volatile int snapshotEpoch = 0;
+    /**
+     * Incremented whenever {@link #sessionId}, {@link #resetEpoch} or
+     * {@link #snapshotEpoch} changes, so that the recording path needs to check a single
+     * value to know whether its state is up to date.
+     */
+    private static volatile int generation = 0;
     /**
      * Current number of instrumented methods in current {@link #sessionId}. Whenever a
      * new session is created this value is set to 0.
      */
     private static int methodCount = 0;
     /**
-     * Array of method stats. When a new session is created all elements are set to
-     * <code>null</code>.
+     * Registered methods of the current session, indexed by method index (global id minus
+     * {@link #sessionBase}). The registry is split in segments of {@link #SEGMENT_SIZE}
+     * methods that are allocated as needed, so it grows without copying the methods.
+     * These instances hold no statistics, which are kept by each thread in its own
+     * copies. When a new session is created the whole registry is discarded.
+     */
+    private static volatile MethodGroup[][] globalMethods = new MethodGroup[16][];
+    /**
+     * Index of each registered method in {@link #globalMethods}, by name.
+     */
+    private static final Map<String, Integer> methodIndexes = new HashMap<String, Integer>();
+    /**
+     * List of all live threads that have recorded at least one method.
+     */
+    private static final List<ThreadProfiler> globalThreadInfos = new ArrayList<ThreadProfiler>();
+    /**
+     * Buffers of statistics handed over by threads (or left by dead threads) and not yet
+     * collected by a snapshot.
+     */
+    private static final Queue<RetiredBuffer> retiredBuffers = new ConcurrentLinkedQueue<RetiredBuffer>();
+    /**
+     * Sum of all buffers collected so far in the current session and reset epoch.
+     */
+    private static Statistics accumulated = new Statistics(0, false);
+    /**
+     * Part of {@link #accumulated} recorded by each thread group, indexed by group key
+     * (see {@link #setThreadStats(int, String)}).
+     */
+    private static Map<String, MethodGroup[]> accumulatedThreads =
+        new HashMap<String, MethodGroup[]>();
+    private static int accumulatedSession = -1;
+    private static int accumulatedEpoch = -1;
+    /**
+     * Sum of the buffers collected in the current session since the last delta
+     * snapshot, or <code>null</code> before the first one.
+     */
+    private static Statistics delta;
+    private static Map<String, MethodGroup[]> deltaThreads;
+    private static int deltaSession = -1;
+    /**
+     * Number of threads registered since the last sweep of dead threads.
+     */
+    private static int registrationsSinceSweep = 0;
+    /**
+     * Maximum time a snapshot waits for running threads to hand over their buffers.
+     * Threads that miss it are read in place.
+     */
+    private static final long BUFFER_FLIP_TIMEOUT = 20;
+    /**
+     * Number of events logged by a thread before they are handed over to the
+     * aggregator (see {@link #setAsyncEngine(boolean)}).
+     */
+    private static final int EVENT_LOG_SIZE = 4096;
+    /**
+     * Number of logs waiting for the aggregator above which the threads that hand over
+     * their logs are blocked.
+     */
+    private static final int MAX_PENDING_LOGS = 256;
+    /**
+     * Threads hand their logs over when they leave their outermost method, even if not
+     * full, unless they did so less than this many nanoseconds (of their clock) ago.
+     */
+    private static final long EVENT_LOG_INTERVAL = 1000000;
+    /**
+     * Maximum time a snapshot waits in milliseconds for the aggregator to catch up.
+     */
+    private static final long AGGREGATION_TIMEOUT = 1000;
+    /**
+     * Whether the threads must record the calling context tree in the current session.
+     */
+    private static boolean recordCallTree = false;
+    /**
+     * Clock of the current session (see {@link #CLOCK_WALL}).
+     */
+    private static int clock = CLOCK_WALL;
+    /**
+     * Whether new sessions hand the events over to the aggregator.
+     */
+    private static boolean asyncEngine = false;
+    /**
+     * Background thread that builds the statistics of the threads in asynchronous mode,
+     * started the first time the mode is enabled.
+     */
+    private static volatile Aggregator aggregator;
+    /**
+     * Snapshot epoch seen by the replays, i.e., of the last barrier processed by the
+     * aggregator.
+     */
+    private static volatile int replayEpoch = 0;
+    /**
+     * Whether only the dynamic extent of trigger methods is recorded in the current
+     * session (see {@link #setTrigger(int)}).
+     */
+    private static boolean triggerOnly = false;
+    /**
+     * One in how many invocations of each method are timed in the current session.
+     */
+    private static int timingRate = 1;
+    /**
+     * Whether the timed invocations are chosen at random in the current session.
+     */
+    private static boolean timingRandom = false;
+    /**
+     * How the statistics are broken down by thread in the current session (see
+     * {@link #THREADS_OFF}).
+     */
+    private static int threadStats = THREADS_OFF;
+    /**
+     * Patterns that name the thread pools, in the order they are tried.
+     */
+    private static Pattern[] threadPools = new Pattern[0];
+    private static String[] threadPoolNames = new String[0];
+    /**
+     * Thread filter of the current session (see {@link #setThreadFilter(String)}).
+     */
+    private static volatile ThreadFilter threadFilter = new ThreadFilter(0);
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    /**
+     * Estimated time, in nanoseconds, that the probes of one instrumented call add to the
+     * net time of the active methods, or <code>0</code> if the overhead must not be
+     * compensated.
+     */
+    private static volatile double probeCost = 0;
+    /**
+     * Estimated part of {@link #probeCost} that is included in the net time of the
+     * called method itself.
+     */
+    private static volatile double innerProbeCost = 0;
+    /**
+     * Number of invocations not recorded since the last reset because the call stack of
+     * their threads exceeded {@link #MAX_CALL_DEPTH}.
      */
-    private static final MethodGroup[] globalMethods = new MethodGroup[MAX_METHODS];
+    private static final AtomicLong overflowCalls = new AtomicLong();
+
     /**
-     * Map of thread infos. Whenever a new session is created this map is cleared.
+     * Holds the profiler of the current thread. This is the only lookup done by the
+     * recording path.
      */
-    private static final Map<Thread, ThreadProfiler> globalThreadInfos = new WeakHashMap<Thread, ThreadProfiler>();
+    private static final ThreadLocal<ThreadProfiler> threadProfiler = new ThreadLocal<ThreadProfiler>() {
+        @Override
+        protected ThreadProfiler initialValue() {
+            return register(new ThreadProfiler());
+        }
+    };
 
     /**
      * Creates a new method object assigning a new GMId (Global Method Id)
      * <p>
-     * A global method ID has two fundamental parts: bits 0-15 represent the method ID,
-     * for any method and for any session in the same JVM execution.
+     * Global method ids are unique for any method and for any session in the same JVM
+     * execution. The ids of a session are consecutive and start at {@link #sessionBase}.
+     * <p>
+     * A method registered more than once in the same session (for instance, when its
+     * class is redefined or loaded by another class loader) keeps its first id.
      * 
      * @param methodName name of the method to trace
      * @return global method id
      */
     public static int newMethod(String methodName) {
         synchronized (globalLock) {
-            int globalMethodId = (sessionId << 16) | methodCount;
-            globalMethods[methodCount++] = new MethodGroup(globalMethodId, methodName);
-            if (methodCount >= globalMethods.length) {
+            Integer index = methodIndexes.get(methodName);
+            if (index != null) {
+                return sessionBase + index;
+            }
+            if (sessionBase + methodCount == Integer.MAX_VALUE) {
                 throw new Profiler4JError("Reached limit of traced methods");
             }
+            int segment = methodCount >>> SEGMENT_BITS;
+            if (segment >= globalMethods.length) {
+                MethodGroup[][] segments = new MethodGroup[globalMethods.length << 1][];
+                System.arraycopy(globalMethods, 0, segments, 0, globalMethods.length);
+                globalMethods = segments;
+            }
+            if (globalMethods[segment] == null) {
+                globalMethods[segment] = new MethodGroup[SEGMENT_SIZE];
+            }
+            int globalMethodId = sessionBase + methodCount;
+            globalMethods[segment][methodCount & (SEGMENT_SIZE - 1)] = new MethodGroup(
+                    globalMethodId, methodCount, methodName);
+            methodIndexes.put(methodName, methodCount);
+            methodCount++;
+            TraceBuffer.defineMethod(globalMethodId, methodName);
             return globalMethodId;
         }
     }
 
+    /**
+     * Looks up a registered method of the current session.
+     * 
+     * @param index method index
+     * @return method or <code>null</code> if not registered
+     */
+    private static MethodGroup getGlobalMethod(int index) {
+        MethodGroup[][] segments = globalMethods;
+        int segment = index >>> SEGMENT_BITS;
+        if (segment >= segments.length || segments[segment] == null) {
+            return null;
+        }
+        return segments[segment][index & (SEGMENT_SIZE - 1)];
+    }
+
     /**
      * Records a method's entry. This method is called by instrumented code.
      * 
@@ -119,24 +464,37 @@ public class ThreadProfiler {
      * @see #newMethod(String)
      */
     public static void enterMethod(int globalMethodId) {
-        if (Thread.currentThread() == Agent.server) {
+        if (!enabled) {
             return;
         }
+        threadProfiler.get().enter0(globalMethodId);
+    }
+
+    /**
+     * Starts a transaction, unless one is already active in the current thread. Called
+     * by instrumented code just before {@link #enterMethod(int)} in entry methods.
+     * 
+     * @param globalMethodId
+     * @param args arguments of the invocation
+     * @see Rule.Option#TRANSACTION
+     */
+    public static void beginTransaction(int globalMethodId, Object[] args) {
         if (!enabled) {
             return;
         }
-        synchronized (globalLock) {
-            int sessionIdOfMethod = globalMethodId >> 16;
-            if (sessionIdOfMethod != sessionId) {
-                return;
-            }
-            ThreadProfiler ti = globalThreadInfos.get(Thread.currentThread());
-            if (ti == null) {
-                ti = new ThreadProfiler();
-                globalThreadInfos.put(Thread.currentThread(), ti);
-            }
-            ti.enter0(globalMethods[globalMethodId & 0xffff]);
+        threadProfiler.get().beginTransaction0(globalMethodId, args);
+    }
+
+    /**
+     * Ends the transaction of the current thread if it was started by the method being
+     * exited. Called by instrumented code just after {@link #exitMethod(int)} in entry
+     * methods.
+     */
+    public static void endTransaction() {
+        if (!enabled) {
+            return;
         }
+        threadProfiler.get().endTransaction0();
     }
 
     /**
@@ -146,23 +504,29 @@ public class ThreadProfiler {
      * @see #newMethod(String)
      */
     public static void exitMethod(int globalMethodId) {
-        if (Thread.currentThread() == Agent.server) {
-            return;
-        }
         // if the current session is transient just return
         if (!enabled) {
             return;
         }
-        synchronized (globalLock) {
-            int sessionIdOfMethod = globalMethodId >> 16;
-            if (sessionIdOfMethod != sessionId) {
-                return;
-            }
-            ThreadProfiler ti = globalThreadInfos.get(Thread.currentThread());
-            if (ti != null) {
-                ti.exit0();
-            }
+        threadProfiler.get().exit0(globalMethodId);
+    }
+
+    /**
+     * Records a stack sample taken by the {@link Sampler}. The statistics are kept by the
+     * profiler of the calling thread as if the sampled methods had just been exited:
+     * each method in the stack gets one hit and the time of the sample (only once per
+     * sample if it is recursive), the innermost method gets the time as self time as
+     * well.
+     * 
+     * @param globalMethodIds stack of global method ids, outermost first
+     * @param n number of frames in the stack
+     * @param time time represented by the sample
+     */
+    static void recordSample(int[] globalMethodIds, int n, long time) {
+        if (!enabled) {
+            return;
         }
+        threadProfiler.get().sample0(globalMethodIds, n, time);
     }
 
     /**
@@ -175,236 +539,2114 @@ public class ThreadProfiler {
     public static void startSessionConfig() {
         synchronized (globalLock) {
             enabled = false;
-            for (int i = 0; i < methodCount; i++) {
-                globalMethods[i] = null;
+            if (sessionBase > Integer.MAX_VALUE - methodCount - 1) {
+                throw new Profiler4JError("Reached limit of traced methods");
             }
+            globalMethods = new MethodGroup[16][];
+            methodIndexes.clear();
+            sessionBase += methodCount + 1;
             methodCount = 0;
-            sessionId = (sessionId + 1) & 0xff;
+            overflowCalls.set(0);
+            SlowInvocations.clear();
+            sessionId++;
+            generation++;
         }
     }
 
     public static void endSessionConfig() {
+        List<EventLog> lastLogs;
         synchronized (globalLock) {
-            for (ThreadProfiler ti : globalThreadInfos.values()) {
-                synchronized (ti) {
-                    ti.depth = 0;
-                }
+            // Live threads discard their own statistics as soon as they notice the new
+            // session, and buffers of older sessions are discarded by the next snapshot
+            synchronized (registryLock) {
+                lastLogs = sweepDeadThreads();
             }
-            globalThreadInfos.clear();
             enabled = true;
         }
+        submitLastLogs(lastLogs);
     }
 
     /**
-     * Resets all method counters. Currently active methods are not affected.
+     * Defines whether threads must record the calling context tree. The new value is
+     * valid only for the sessions created after this call, so it should be called between
+     * {@link #startSessionConfig()} and {@link #endSessionConfig()}.
+     * 
+     * @param enabled <code>true</code> to record the calling context tree
      */
-    public static void resetStats() {
+    static void setRecordCallTree(boolean enabled) {
         synchronized (globalLock) {
-            for (MethodGroup m : globalMethods) {
-                if (m == null) {
-                    // this happens when we pass the last method
-                    break;
-                }
-                m.selfTime = 0;
-                m.netTime = 0;
-                m.childRecursiveTime = 0;
-                m.hits = 0;
-                for (int i = 0; i < m.childCount; i++) {
-                    m.children[i] = null;
-                    m.childrenTimes[i] = 0;
-                }
-                m.childCount = 0;
-            }
-            for (ThreadProfiler ti : globalThreadInfos.values()) {
-                for (int i = 0; i < ti.depth; i++) {
-                    ti.startTimes[i] = System.nanoTime();
-                }
-            }
+            recordCallTree = enabled;
         }
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Instance members
-    // /////////////////////////////////////////////////////////////////////////
-
-    private int depth = 0;
-    private long[] startTimes = new long[MAX_CALL_DEPTH];
-    private MethodGroup[] stack = new MethodGroup[MAX_CALL_DEPTH];
-    private Thread thread;
-
     /**
-     * Private constructor (should be called only be the threadlocal
-     * <code>initialValue()</code> method).
+     * Defines the clock used to measure the times. As with
+     * {@link #setRecordCallTree(boolean)}, the new value is valid only for the sessions
+     * created after this call.
+     * 
+     * @param clock_ one of {@link #CLOCK_WALL}, {@link #CLOCK_CPU},
+     *            {@link #CLOCK_USER} or {@link #CLOCK_BOTH}
      */
-    private ThreadProfiler() {
-        this.thread = Thread.currentThread();
+    static void setClock(int clock_) {
+        synchronized (globalLock) {
+            clock = clock_;
+        }
     }
 
-    private void enter0(MethodGroup m) {
-        ThreadLocalMethod tlm = m.cflow.get();
-        if (tlm.enter() == 1) {
-            startTimes[depth] = System.nanoTime();
+    /**
+     * Selects the asynchronous engine, in which the probes only log the entries and
+     * exits with their times. The logs are handed over in batches to a background
+     * thread that replays them into a private profiler per thread, which holds the
+     * statistics. Transactions are not recorded in this mode. As with
+     * {@link #setRecordCallTree(boolean)}, the new value is valid only for the sessions
+     * created after this call.
+     * 
+     * @param async <code>true</code> for the asynchronous engine, <code>false</code>
+     *            to update the statistics in the probes
+     */
+    static void setAsyncEngine(boolean async) {
+        synchronized (globalLock) {
+            if (async && aggregator == null) {
+                aggregator = new Aggregator();
+                aggregator.start();
+            }
+            asyncEngine = async;
         }
-        stack[depth++] = m;
     }
 
-    public final void exit0() {
-        if (depth == 0) {
-            return;
+    /**
+     * Makes the profiler time only one in every <code>rate</code> invocations of each
+     * method in each thread. The other invocations are only counted, which saves the
+     * clock reads, and snapshots extrapolate the times of the timed ones. The timed
+     * invocations are either exactly every <code>rate</code> invocations or chosen at
+     * random with the same average rate, which avoids aliasing with periodic patterns.
+     * As with {@link #setRecordCallTree(boolean)}, the new value is valid only for the
+     * sessions created after this call.
+     * 
+     * @param rate timing rate (<code>1</code> to time every invocation)
+     * @param random whether the timed invocations are chosen at random
+     */
+    static void setTimingRate(int rate, boolean random) {
+        synchronized (globalLock) {
+            timingRate = rate;
+            timingRandom = random;
         }
-        depth--;
-        MethodGroup m = stack[depth];
-        ThreadLocalMethod tlm = m.cflow.get();
-        if (tlm.leave() > 0) {
-            return;
+    }
+
+    /**
+     * Defines how the statistics are broken down by thread. In {@link #THREADS_EACH}
+     * mode each thread is a group of its own. In {@link #THREADS_POOL} mode the threads
+     * whose names match one of the given patterns are grouped under the pattern, and
+     * the others under their name with the trailing digits replaced by <code>*</code>,
+     * so <code>pool-1-thread-7</code> is counted as <code>pool-1-thread-*</code>.
+     * <p>
+     * As with {@link #setRecordCallTree(boolean)}, the new value is valid only for the
+     * sessions created after this call.
+     * 
+     * @param mode one of {@link #THREADS_OFF}, {@link #THREADS_EACH} or
+     *            {@link #THREADS_POOL}
+     * @param pools comma-separated list of thread name patterns, where <code>*</code>
+     *            matches any sequence of characters (may be <code>null</code>)
+     */
+    static void setThreadStats(int mode, String pools) {
+        List<String> names = new ArrayList<String>();
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        if (pools != null) {
+            for (String s : pools.split(",")) {
+                if (s.length() > 0) {
+                    names.add(s);
+                    patterns.add(compileThreadPattern(s));
+                }
+            }
         }
-        long t = System.nanoTime();
-        long netTime = t - startTimes[depth];
-        m.hits++;
-        m.netTime += netTime;
-        if (depth > 0) {
-            MethodGroup pm = stack[depth - 1];
-            pm.addChildTime(m, netTime);
+        synchronized (globalLock) {
+            threadStats = mode;
+            threadPools = patterns.toArray(new Pattern[patterns.size()]);
+            threadPoolNames = names.toArray(new String[names.size()]);
         }
     }
 
     /**
-     * Simulates an exit() in the whole call stack.
+     * Defines which threads are profiled. The filter is a comma-separated list of
+     * thread name patterns, tried in order until one matches the thread. A pattern
+     * prefixed with <code>!</code> rejects the threads it matches, and one prefixed with
+     * <code>group:</code> is matched against the name of the thread group instead. A
+     * thread matched by no pattern is profiled only if all patterns are rejections.
+     * <p>
+     * Each thread evaluates the filter once per session, so rejected threads leave the
+     * probes right away. As with {@link #setRecordCallTree(boolean)}, the new value is
+     * valid only for the sessions created after this call.
      * 
-     * @param sampler
-     * @param nanoTime
-     * @param methodsCopy
+     * @param filter filter, or <code>null</code> to profile all threads
      */
-    private static void exitWholeStack(ThreadProfiler ti, MethodGroup[] globalMethods_) {
-        int depth_ = ti.depth;
-        long t = System.nanoTime();
-        while (depth_ > 0) {
-            depth_--;
-            long netTime = t - ti.startTimes[depth_];
-            MethodGroup m = ti.stack[depth_];
-            m.hits++;
-            m.netTime += netTime;
-            if (depth_ > 0) {
-                MethodGroup pm = ti.stack[depth_ - 1];
-                pm.addChildTime(m, netTime);
+    static void setThreadFilter(String filter) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<Boolean> accepts = new ArrayList<Boolean>();
+        List<Boolean> groups = new ArrayList<Boolean>();
+        if (filter != null) {
+            for (String s : filter.split(",")) {
+                boolean accept = !s.startsWith("!");
+                if (!accept) {
+                    s = s.substring(1);
+                }
+                boolean group = s.startsWith("group:");
+                if (group) {
+                    s = s.substring(6);
+                }
+                if (s.length() > 0) {
+                    patterns.add(compileThreadPattern(s));
+                    accepts.add(accept);
+                    groups.add(group);
+                }
             }
         }
+        ThreadFilter f = new ThreadFilter(patterns.size());
+        for (int i = 0; i < f.patterns.length; i++) {
+            f.patterns[i] = patterns.get(i);
+            f.accepts[i] = accepts.get(i);
+            f.groups[i] = groups.get(i);
+            f.acceptOthers &= !f.accepts[i];
+        }
+        synchronized (globalLock) {
+            threadFilter = f;
+        }
     }
 
     /**
-     * Creates a snapshot with all methods. If a method is currently active it is assumed
-     * a <code>methodExit</code> now.
+     * Tells whether a thread is accepted by the thread filter of the current session
+     * (see {@link #setThreadFilter(String)}).
+     * 
+     * @param thread thread
+     * @return <code>true</code> if the thread must be profiled
      */
-    public static void createSnapshot(OutputStream os) throws IOException {
-        MethodGroup[] methods_ = null;
-        synchronized (globalLock) {
-            methods_ = new MethodGroup[methodCount];
-            for (int i = 0; i < methodCount; i++) {
-                methods_[i] = new MethodGroup(globalMethods[i]);
-            }
-            for (ThreadProfiler ti : globalThreadInfos.values()) {
-                if (ti.thread.isAlive()) {
-                    exitWholeStack(ti, methods_);
+    static boolean isThreadAccepted(Thread thread) {
+        ThreadFilter f = threadFilter;
+        for (int i = 0; i < f.patterns.length; i++) {
+            String name;
+            if (f.groups[i]) {
+                ThreadGroup group = thread.getThreadGroup();
+                if (group == null) {
+                    continue;
                 }
+                name = group.getName();
+            } else {
+                name = thread.getName();
+            }
+            if (f.patterns[i].matcher(name).matches()) {
+                return f.accepts[i];
             }
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            DataOutputStream dos = new DataOutputStream(bos);
-            serialize(dos, methods_);
-            dos.flush();
         }
+        return f.acceptOthers;
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Inner classes
-    // /////////////////////////////////////////////////////////////////////////
-
     /**
-     * Internal data structure that contains statistics about a single method. It is
-     * optimized for performance and should not be used outside this file.
+     * Compiles a thread name pattern, where <code>*</code> matches any sequence of
+     * characters.
      */
-    private static class MethodGroup {
-
-        public int globalId;
-        public String name;
-        public long netTime;
-        public long childRecursiveTime;
-        public long selfTime;
-        public int hits;
-        public int childCount;
-        public MethodGroup[] children = new MethodGroup[INITIAL_CHILDREN_PER_METHOD];
-        public long[] childrenTimes = new long[INITIAL_CHILDREN_PER_METHOD];
-        public CFlow cflow = new CFlow();
+    private static Pattern compileThreadPattern(String s) {
+        return Pattern.compile("\\Q" + s.replace("*", "\\E.*\\Q") + "\\E");
+    }
 
-        /**
-         * Constructor.
-         * @param composedId
-         * @param name
-         */
-        public MethodGroup(int composedId, String name) {
-            this.globalId = composedId;
-            this.name = name;
+    /**
+     * Gets the key of the group a thread belongs to.
+     * 
+     * @param thread thread
+     * @param mode {@link #THREADS_EACH} or {@link #THREADS_POOL}
+     * @return group key
+     */
+    private static String getThreadKey(Thread thread, int mode) {
+        String name = thread.getName();
+        if (mode == THREADS_EACH) {
+            return name + " [" + thread.getId() + "]";
         }
-
+        for (int i = 0; i < threadPools.length; i++) {
+            if (threadPools[i].matcher(name).matches()) {
+                return threadPoolNames[i];
+            }
+        }
+        return name.replaceAll("[0-9]+$", "*");
+    }
+
+    /**
+     * Gets the methods of a thread group, creating or growing the array as needed.
+     * 
+     * @param groups methods of each group, indexed by group key
+     * @param key group key
+     * @param methodCount number of registered methods
+     * @return methods of the group indexed by method id
+     */
+    private static MethodGroup[] getThreadMethods(Map<String, MethodGroup[]> groups,
+                                                  String key,
+                                                  int methodCount) {
+        MethodGroup[] methods = groups.get(key);
+        if (methods == null || methods.length < methodCount) {
+            MethodGroup[] m = new MethodGroup[methodCount];
+            if (methods != null) {
+                System.arraycopy(methods, 0, m, 0, methods.length);
+            }
+            methods = m;
+            groups.put(key, methods);
+        }
+        return methods;
+    }
+
+    /**
+     * Tells the profiler to record only the methods called while a trigger method is
+     * active. As with {@link #setRecordCallTree(boolean)}, the new value is valid only
+     * for the sessions created after this call.
+     * 
+     * @param enabled whether only the dynamic extent of triggers is recorded
+     */
+    static void setTriggerOnly(boolean enabled) {
+        synchronized (globalLock) {
+            triggerOnly = enabled;
+        }
+    }
+
+    /**
+     * Makes a method start a transaction when invoked outside of one.
+     * 
+     * @param globalMethodId global method id
+     * @param mode how the key of the transaction is derived (see
+     *            {@link Transactions#parseMode(String)})
+     */
+    static void setTransactionMode(int globalMethodId, int mode) {
+        synchronized (globalLock) {
+            MethodGroup proto = getGlobalMethod(globalMethodId - sessionBase);
+            if (proto != null) {
+                proto.transactionMode = mode;
+            }
+        }
+    }
+
+    /**
+     * Marks a method as a trigger (see {@link #setTriggerOnly(boolean)}).
+     * 
+     * @param globalMethodId global method id
+     */
+    static void setTrigger(int globalMethodId) {
+        synchronized (globalLock) {
+            MethodGroup proto = getGlobalMethod(globalMethodId - sessionBase);
+            if (proto != null) {
+                proto.trigger = true;
+            }
+        }
+    }
+
+    /**
+     * Measures the overhead of the probes, which is then subtracted from the times
+     * reported by the snapshots. The measurement uses a private profiler that runs the
+     * same code as the instrumented methods, with the calling context tree enabled or
+     * not according to the current setting, and keeps the best of several rounds. The
+     * rounds are timed with the clock of the session (see {@link #setClock(int)}), as the
+     * overhead is subtracted from times measured with it. The user time clock is too
+     * coarse for this, so the overhead is not compensated with it.
+     * <p>
+     * This takes a few milliseconds and should be called when a session is configured.
+     */
+    static void calibrate() {
+        if (clock == CLOCK_USER) {
+            clearProbeCost();
+            return;
+        }
+        ThreadProfiler tp = new ThreadProfiler(false);
+        double best = Double.MAX_VALUE;
+        double bestInner = 0;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            int sid = sessionBase;
+            int gen = generation;
+            tp.session = sid;
+            tp.epoch = resetEpoch;
+            tp.bufferEpoch = snapshotEpoch;
+            tp.seenGeneration = gen;
+            tp.depth = 0;
+            tp.triggerOnlyMode = false;
+            tp.threadTimingRate = 1;
+            tp.rejectedSession = -1;
+            tp.clockType = clock;
+            int outer = sid;
+            int inner = sid + 1;
+            // copies, so that the histograms are updated as in real threads
+            tp.methods = new MethodGroup[]{
+                    new MethodGroup(new MethodGroup(outer, 0, "outer")),
+                    new MethodGroup(new MethodGroup(inner, 1, "inner"))};
+            tp.recursion = new int[2];
+            tp.edges = new EdgeTable();
+            tp.startCallTree();
+            tp.enter0(outer);
+            long t0 = tp.now();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                // the lookups are part of the cost of enterMethod() and exitMethod()
+                threadProfiler.get().ignore0();
+                tp.enter0(inner);
+                threadProfiler.get().ignore0();
+                tp.exit0(inner);
+            }
+            long t1 = tp.now();
+            tp.exit0(outer);
+            MethodGroup m = tp.methods[1];
+            if (generation != gen || m.hits != CALIBRATION_CALLS) {
+                // a session change, reset or snapshot disturbed the round
+                continue;
+            }
+            double cost = (t1 - t0) / (double) CALIBRATION_CALLS;
+            if (cost < best) {
+                best = cost;
+                bestInner = Math.min(cost, m.netTime / (double) CALIBRATION_CALLS);
+            }
+        }
+        if (best == Double.MAX_VALUE) {
+            // the value of a previous session may have been measured with another clock
+            clearProbeCost();
+            return;
+        }
+        probeCost = best;
+        innerProbeCost = bestInner;
+        Log.print(1, String.format("Probe overhead: %.1fns per call (%.1fns inside)", best,
+                                   bestInner));
+    }
+
+    /**
+     * Disables the compensation of the probe overhead, which is meaningless when the
+     * methods are sampled.
+     */
+    static void clearProbeCost() {
+        probeCost = 0;
+        innerProbeCost = 0;
+    }
+
+    /**
+     * @return estimated overhead of the probes of one call in nanoseconds, or
+     *         <code>0</code> if it was not measured for the current session
+     */
+    static double getProbeCost() {
+        return probeCost;
+    }
+
+    /**
+     * Demotes the probe of a method of the current session. Invocations that start after
+     * the demotion is noticed are only counted. Demotions are undone when a new session
+     * is created.
+     * 
+     * @param index method part of the global method id
+     * @param mode either {@link #PROBE_COUNT_ONLY} or {@link #PROBE_REMOVED}
+     * @return name of the method or <code>null</code> if it is not registered
+     */
+    static String demote(int index, int mode) {
+        synchronized (globalLock) {
+            MethodGroup proto = getGlobalMethod(index);
+            if (proto == null) {
+                return null;
+            }
+            if (proto.probeMode == PROBE_DISABLED && mode == PROBE_COUNT_ONLY) {
+                // takes effect when the method is enabled again
+                proto.disabledFrom = (byte) mode;
+            } else {
+                proto.probeMode = (byte) mode;
+            }
+            return proto.name;
+        }
+    }
+
+    /**
+     * Disables or enables again the probes of the methods of the current session whose
+     * names match a pattern. The statistics already recorded are kept, and invocations
+     * active at the time of the change are recorded as they started. Methods whose
+     * instrumentation was removed are not affected. Methods demoted to
+     * {@link #PROBE_COUNT_ONLY} can be disabled, and are only counted again when
+     * enabled.
+     * 
+     * @param pattern method pattern, as in the rules
+     * @param enabled <code>false</code> to disable the methods
+     * @return number of methods changed
+     */
+    static int setEnabled(String pattern, boolean enabled) {
+        Pattern regex = Utils.getRegex(pattern);
+        int changed = 0;
+        synchronized (globalLock) {
+            for (int i = 0; i < methodCount; i++) {
+                MethodGroup proto = getGlobalMethod(i);
+                if (proto == null || proto.probeMode == PROBE_REMOVED
+                        || enabled != (proto.probeMode == PROBE_DISABLED)
+                        || !regex.matcher(proto.name).matches()) {
+                    continue;
+                }
+                if (enabled) {
+                    proto.probeMode = proto.disabledFrom;
+                } else {
+                    proto.disabledFrom = proto.probeMode;
+                    proto.probeMode = PROBE_DISABLED;
+                }
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Asks the profiler to capture the call subtree of the invocations of a method that
+     * take longer than a threshold (see {@link SlowInvocations}).
+     * 
+     * @param globalMethodId global method id
+     * @param threshold time in nanoseconds
+     */
+    static void setSlowThreshold(int globalMethodId, long threshold) {
+        synchronized (globalLock) {
+            MethodGroup proto = getGlobalMethod(globalMethodId - sessionBase);
+            if (proto != null) {
+                proto.slowThreshold = threshold;
+            }
+        }
+    }
+
+    /**
+     * @param index method part of the global method id
+     * @return probe mode of a method of the current session
+     */
+    static int getProbeMode(int index) {
+        MethodGroup proto = getGlobalMethod(index);
+        return proto == null ? PROBE_TIMED : proto.probeMode;
+    }
+
+    /**
+     * @param methodName name of the method
+     * @return <code>true</code> if the instrumentation of a method of the current
+     *         session was removed
+     */
+    static boolean isRemoved(String methodName) {
+        synchronized (globalLock) {
+            Integer index = methodIndexes.get(methodName);
+            return index != null && getGlobalMethod(index).probeMode == PROBE_REMOVED;
+        }
+    }
+
+    /**
+     * @return number of methods registered in the current session
+     */
+    static int getMethodCount() {
+        synchronized (globalLock) {
+            return methodCount;
+        }
+    }
+
+    /**
+     * Reads the current totals of the methods without disturbing the threads, i.e.,
+     * without the buffer flips of a snapshot. The values are approximate, as buffers
+     * of running threads are read in place and active methods are not accounted.
+     * 
+     * @param hits array to fill with the hits of each method, indexed by method id
+     * @param netTimes array to fill with the net time of each method, indexed by method
+     *            id
+     */
+    static void peekStatistics(long[] hits, long[] netTimes) {
+        MethodGroup[] sum = new MethodGroup[Math.min(hits.length, netTimes.length)];
+        synchronized (snapshotLock) {
+            int sid = sessionBase;
+            int epoch = resetEpoch;
+            if (accumulatedSession == sid && accumulatedEpoch == epoch) {
+                merge(accumulated.methods, sum);
+            }
+            for (RetiredBuffer rb : retiredBuffers) {
+                if (rb.session == sid && rb.epoch == epoch) {
+                    merge(rb.methods, sum);
+                }
+            }
+            List<ThreadProfiler> threads;
+            synchronized (registryLock) {
+                threads = new ArrayList<ThreadProfiler>(globalThreadInfos);
+            }
+            for (ThreadProfiler t : threads) {
+                ThreadProfiler ti = getRecorder(t);
+                if (ti.session == sid && ti.epoch == epoch) {
+                    merge(ti.methods, sum);
+                }
+            }
+        }
+        for (int i = 0; i < sum.length; i++) {
+            hits[i] = sum[i] == null ? 0 : sum[i].hits;
+            netTimes[i] = sum[i] == null ? 0 : sum[i].netTime;
+        }
+    }
+
+    /**
+     * Resets all method counters. Currently active methods are not affected.
+     * <p>
+     * Each thread discards its own counters the next time it records a method.
+     */
+    public static void resetStats() {
+        synchronized (snapshotLock) {
+            accumulated = new Statistics(0, false);
+            accumulatedThreads = new HashMap<String, MethodGroup[]>();
+            SlowInvocations.clear();
+            resetTime = System.nanoTime();
+            overflowCalls.set(0);
+            resetEpoch++;
+            generation++;
+        }
+    }
+
+    /**
+     * Registers the profiler of a thread that is recording its first method.
+     * 
+     * @param ti profiler of the current thread
+     * @return the same profiler
+     */
+    private static ThreadProfiler register(ThreadProfiler ti) {
+        if (ti.ignored) {
+            return ti;
+        }
+        List<EventLog> lastLogs = null;
+        synchronized (registryLock) {
+            if (++registrationsSinceSweep >= 64) {
+                registrationsSinceSweep = 0;
+                lastLogs = sweepDeadThreads();
+            }
+            globalThreadInfos.add(ti);
+        }
+        submitLastLogs(lastLogs);
+        return ti;
+    }
+
+    /**
+     * Removes dead threads from {@link #globalThreadInfos}. Their last buffers are left
+     * for the next snapshot. Must be called with {@link #registryLock} held.
+     * 
+     * @return last logs of the dead threads that used the asynchronous engine, to be
+     *         passed to {@link #submitLastLogs(List)}, or <code>null</code>
+     */
+    private static List<EventLog> sweepDeadThreads() {
+        List<EventLog> lastLogs = null;
+        for (Iterator<ThreadProfiler> i = globalThreadInfos.iterator(); i.hasNext();) {
+            ThreadProfiler ti = i.next();
+            if (!ti.thread.isAlive()) {
+                i.remove();
+                EventLog log = ti.events;
+                if (log != null) {
+                    // the replay retires its buffer once it has caught up
+                    log.last = true;
+                    if (lastLogs == null) {
+                        lastLogs = new ArrayList<EventLog>();
+                    }
+                    lastLogs.add(log);
+                } else {
+                    retiredBuffers.add(new RetiredBuffer(ti));
+                }
+            }
+        }
+        return lastLogs;
+    }
+
+    /**
+     * Hands the last logs of dead threads over to the aggregator. As this blocks while
+     * the aggregator is too far behind, it must not be called with
+     * {@link #registryLock} or {@link #globalLock} held.
+     * 
+     * @param lastLogs logs returned by {@link #sweepDeadThreads()} (may be
+     *            <code>null</code>)
+     */
+    private static void submitLastLogs(List<EventLog> lastLogs) {
+        if (lastLogs != null) {
+            for (EventLog log : lastLogs) {
+                aggregator.submit(log);
+            }
+        }
+    }
+
+    /**
+     * @param ti profiler of a thread
+     * @return profiler that holds the statistics of the thread, i.e., its replay if the
+     *         thread uses the asynchronous engine
+     */
+    private static ThreadProfiler getRecorder(ThreadProfiler ti) {
+        ThreadProfiler r = ti.replay;
+        return r != null ? r : ti;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Instance members
+    // /////////////////////////////////////////////////////////////////////////
+
+    private int depth = 0;
+    /**
+     * Number of invocations above the deepest recorded one (i.e., not recorded) that
+     * are still active.
+     */
+    private int overflowDepth = 0;
+    private boolean overflowReported;
+    /**
+     * The arrays that follow are indexed by stack depth. They start empty and grow
+     * together as needed (see {@link #growStack()}).
+     */
+    private long[] startTimes = new long[0];
+    /**
+     * Number of probes (method entries) fired by this thread so far.
+     */
+    private long probes;
+    /**
+     * Value of {@link #probes} when each active method was entered.
+     */
+    private long[] startProbes = new long[0];
+    /**
+     * Time spent so far by each active method in its (timed) callees, used to compute
+     * the self time of the method on exit.
+     */
+    private long[] childTimes = new long[0];
+    /**
+     * CPU time of the thread when each active method was entered (only if the clock is
+     * {@link #CLOCK_BOTH}).
+     */
+    private long[] startCpuTimes = new long[0];
+    /**
+     * Indexes of the active methods. Statistics are looked up in {@link #methods} on
+     * exit, as the buffer may have been swapped since the method was entered. Methods
+     * entered with a demoted probe are stored as <code>~index</code>, so they are
+     * skipped on exit even if the probe mode changes meanwhile.
+     */
+    private int[] stack = new int[0];
+    /**
+     * Nodes of {@link #calls} that correspond to the active methods.
+     */
+    private int[] nodes;
+    private Thread thread;
+    /**
+     * Current buffer of statistics of this thread, indexed by the method part of the
+     * global method id. The array grows as new methods are recorded.
+     */
+    private MethodGroup[] methods = new MethodGroup[64];
+    /**
+     * Number of active invocations of each method, timed or not, indexed by method
+     * index. Only the outermost one is counted as a hit. Unlike {@link #methods} it is
+     * kept across buffers, and it is always at least as long as {@link #methods}.
+     */
+    private int[] recursion = new int[64];
+    /**
+     * Clock of the session of this thread.
+     */
+    private int clockType;
+    /**
+     * Timing rate of the session of this thread (see {@link #setTimingRate(int)}).
+     */
+    private int threadTimingRate;
+    /**
+     * State of the random generator of the timed invocations, or <code>0</code> if
+     * they are not chosen at random.
+     */
+    private long timingSeed;
+    /**
+     * Whether the session of this thread records only the dynamic extent of trigger
+     * methods. In that case the stack is empty whenever no trigger is active.
+     */
+    private boolean triggerOnlyMode;
+    /**
+     * Slot of the active transaction (see {@link Transactions}), or <code>-1</code>.
+     */
+    private int txSlot = -1;
+    /**
+     * Stack depth when the active transaction started.
+     */
+    private int txDepth;
+    /**
+     * Innermost open node of the subtree being captured, or <code>-1</code> if no slow
+     * invocation is being captured (see {@link #captureEnter(int, long)}).
+     */
+    private int captureNode = -1;
+    private int captureCount;
+    private int captureSkipped;
+    private long captureThreshold;
+    private int[] captureParents = new int[0];
+    private int[] captureMethods = new int[0];
+    /**
+     * Stack depth of each captured node, which tells whether an exiting frame was
+     * captured.
+     */
+    private int[] captureDepths = new int[0];
+    private long[] captureStarts = new long[0];
+    private long[] captureTimes = new long[0];
+    /**
+     * Time spent by each method of the current buffer in its callees.
+     */
+    private EdgeTable edges = new EdgeTable();
+    /**
+     * Calling context tree of the current buffer, or <code>null</code> if the current
+     * session does not record it.
+     */
+    private CallTree calls;
+    /**
+     * Session (see {@link #sessionBase}) to which the statistics of this thread belong.
+     */
+    private int session;
+    /**
+     * Value of {@link #resetEpoch} when the statistics of this thread were last cleared.
+     */
+    private int epoch;
+    /**
+     * Value of {@link #snapshotEpoch} when the current buffer was started.
+     */
+    private volatile int bufferEpoch;
+    /**
+     * Value of {@link #generation} last seen by this thread.
+     */
+    private int seenGeneration;
+    /**
+     * Number of samples recorded by this thread (see {@link #recordSample}).
+     */
+    private int sampleCount;
+    /**
+     * Number of the last sample in which each method was counted, indexed by method id.
+     */
+    private int[] sampleMarks;
+    /**
+     * Whether this thread should not be profiled at all.
+     */
+    private final boolean ignored;
+    /**
+     * Session in which this thread was rejected by the thread filter (see
+     * {@link #setThreadFilter(String)}), or <code>-1</code>.
+     */
+    private int rejectedSession = -1;
+    /**
+     * Ring buffer where the entries and exits of this thread are traced, or
+     * <code>null</code> if tracing is disabled (see {@link TraceBuffer}).
+     */
+    private TraceBuffer trace;
+    /**
+     * Events not yet handed over to the aggregator, or <code>null</code> if this thread
+     * uses the inline engine (see {@link #setAsyncEngine(boolean)}).
+     */
+    private EventLog events;
+    /**
+     * Private profiler into which the aggregator replays the events of this thread, or
+     * <code>null</code>.
+     */
+    private volatile ThreadProfiler replay;
+    /**
+     * Whether this is the replay of a thread, whose clock is the time of the event
+     * being replayed.
+     */
+    private boolean replaying;
+    private long replayTime;
+    /**
+     * Number of invocations logged but not yet exited by this thread.
+     */
+    private int logDepth;
+    /**
+     * Time of the last event handed over to the aggregator.
+     */
+    private long lastHandover;
+
+    /**
+     * Private constructor (should be called only be the threadlocal
+     * <code>initialValue()</code> method).
+     */
+    private ThreadProfiler() {
+        this(Thread.currentThread() == Agent.server
+                || Thread.currentThread() instanceof Aggregator);
+        if (!ignored && rejectedSession < 0) {
+            trace = TraceBuffer.open(thread);
+        }
+        startEngine();
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param ignored whether the thread should not be profiled at all
+     */
+    private ThreadProfiler(boolean ignored) {
+        this.thread = Thread.currentThread();
+        this.ignored = ignored;
+        this.seenGeneration = generation;
+        this.session = sessionBase;
+        this.epoch = resetEpoch;
+        this.bufferEpoch = snapshotEpoch;
+        this.clockType = clock;
+        this.threadTimingRate = timingRate;
+        this.timingSeed = timingRandom ? newTimingSeed() : 0;
+        this.triggerOnlyMode = triggerOnly;
+        if (!isThreadAccepted(thread)) {
+            this.rejectedSession = session;
+        }
+        startCallTree();
+    }
+
+    private void enter0(int globalMethodId) {
+        if (ignored) {
+            return;
+        }
+        int sid = sessionBase;
+        int index = globalMethodId - sid;
+        if (index < 0 || rejectedSession == sid) {
+            return;
+        }
+        if (seenGeneration != generation) {
+            sync(sid);
+            if (rejectedSession == sid) {
+                return;
+            }
+        }
+        if (events != null) {
+            if (trace != null) {
+                traceAsync(index, globalMethodId);
+            }
+            logDepth++;
+            logEvent(globalMethodId);
+            return;
+        }
+        if (depth == 0 && triggerOnlyMode && !isTrigger(index)) {
+            // outside the dynamic extent of the triggers
+            return;
+        }
+        MethodGroup m = getMethod(index);
+        if (m == null) {
+            return;
+        }
+        if (depth == stack.length && !growStack()) {
+            overflowDepth++;
+            overflowCalls.incrementAndGet();
+            return;
+        }
+        if (trace != null && m.proto.probeMode != PROBE_DISABLED) {
+            trace.add(globalMethodId);
+        }
+        probes++;
+        if (m.proto.probeMode != PROBE_TIMED) {
+            if (recursion[index]++ == 0 && m.proto.probeMode != PROBE_DISABLED) {
+                m.hits++;
+            }
+            if (calls != null) {
+                nodes[depth] = depth == 0 ? CallTree.ROOT : nodes[depth - 1];
+            }
+            childTimes[depth] = 0;
+            stack[depth++] = ~index;
+            return;
+        }
+        if (threadTimingRate > 1) {
+            if (--m.timingCountdown > 0) {
+                // counted but not timed; the frame still collects the time of its
+                // timed callees (see findCaller())
+                if (recursion[index]++ == 0) {
+                    m.hits++;
+                    m.untimedHits++;
+                }
+                if (calls != null) {
+                    nodes[depth] = depth == 0 ? CallTree.ROOT : nodes[depth - 1];
+                }
+                childTimes[depth] = 0;
+                stack[depth++] = ~index;
+                return;
+            }
+            m.timingCountdown = timingSeed == 0 ? threadTimingRate
+                    : nextTimingCountdown();
+        }
+        recursion[index]++;
+        if (calls != null) {
+            nodes[depth] = calls.child(depth == 0 ? CallTree.ROOT : nodes[depth - 1], index);
+        }
+        // recursive invocations are timed as well, as their self time counts
+        startProbes[depth] = probes;
+        childTimes[depth] = 0;
+        if (clockType == CLOCK_BOTH) {
+            startCpuTimes[depth] = threadBean.getCurrentThreadCpuTime();
+        }
+        startTimes[depth] = now();
+        if (captureNode >= 0) {
+            captureEnter(index, startTimes[depth]);
+        } else if (m.proto.slowThreshold > 0) {
+            captureThreshold = m.proto.slowThreshold;
+            captureEnter(index, startTimes[depth]);
+        }
+        stack[depth++] = index;
+    }
+
+    private void exit0(int globalMethodId) {
+        if (ignored) {
+            return;
+        }
+        int sid = sessionBase;
+        if (events != null) {
+            if (globalMethodId < sid || rejectedSession == sid) {
+                return;
+            }
+            if (seenGeneration != generation) {
+                sync(sid);
+            }
+            if (events != null) {
+                if (trace != null) {
+                    traceAsync(globalMethodId - sid, ~globalMethodId);
+                }
+                long t = logEvent(~globalMethodId);
+                if (--logDepth <= 0) {
+                    logDepth = 0;
+                    // the thread may wait now, so the log is not left behind for long
+                    if (t - lastHandover >= EVENT_LOG_INTERVAL) {
+                        flushEvents();
+                    }
+                }
+                return;
+            }
+        }
+        if (depth == 0 || globalMethodId < sid) {
+            return;
+        }
+        if (seenGeneration != generation) {
+            sync(sid);
+            if (depth == 0) {
+                return;
+            }
+        }
+        if (overflowDepth > 0) {
+            overflowDepth--;
+            return;
+        }
+        depth--;
+        int index = stack[depth];
+        if (trace != null
+                && (index >= 0 || getGlobalMethod(~index).probeMode != PROBE_DISABLED)) {
+            trace.add(~globalMethodId);
+        }
+        if (index < 0) {
+            recursion[~index]--;
+            addUntimedCall(~index);
+            return;
+        }
+        MethodGroup m = getMethod(index);
+        if (m == null) {
+            return;
+        }
+        long t = now();
+        long netTime = t - startTimes[depth];
+        long selfTime = netTime - childTimes[depth];
+        m.selfTime += selfTime;
+        int slot = txSlot;
+        if (slot >= 0) {
+            m.transactions(slot).txSelfTimes[slot] += selfTime;
+        }
+        int caller = findCaller(depth);
+        if (caller >= 0) {
+            childTimes[caller] += netTime;
+        }
+        if (calls != null) {
+            calls.add(nodes[depth], netTime);
+        }
+        if (captureNode >= 0 && captureDepths[captureNode] == depth) {
+            captureExit(t);
+        }
+        if (--recursion[index] > 0) {
+            // the hit and net time of recursive invocations are counted by the
+            // outermost one, whether it is timed or not
+            return;
+        }
+        long descendantCalls = probes - startProbes[depth];
+        m.hits++;
+        m.netTime += netTime;
+        m.descendantCalls += descendantCalls;
+        m.histogram[LatencyHistogram.bucket(netTime)]++;
+        if (netTime > m.maxTime) {
+            m.maxTime = netTime;
+        }
+        if (clockType == CLOCK_BOTH) {
+            m.cpuTime += threadBean.getCurrentThreadCpuTime() - startCpuTimes[depth];
+        }
+        if (slot >= 0) {
+            m.txHits[slot]++;
+            m.txNetTimes[slot] += netTime;
+        }
+        if (caller >= 0) {
+            int c = stack[caller];
+            edges.add(c < 0 ? ~c : c, index, netTime, descendantCalls);
+        }
+    }
+
+    /**
+     * Finds the frame that is charged with the time of the frame at a given position.
+     * Frames of methods that are not timed at all (count-only or disabled probes) are
+     * transparent, while frames of timed methods whose invocation was not timed (see
+     * {@link #setTimingRate(int, boolean)}) collect the time of their callees until
+     * they exit.
+     * 
+     * @param pos position in the stack
+     * @return position of the caller, or <code>-1</code> if there is none
+     */
+    private int findCaller(int pos) {
+        int caller = pos - 1;
+        while (caller >= 0 && stack[caller] < 0
+                && getGlobalMethod(~stack[caller]).probeMode != PROBE_TIMED) {
+            caller--;
+        }
+        return caller;
+    }
+
+    private long newTimingSeed() {
+        long seed = System.nanoTime() ^ (thread.getId() * 0x9E3779B97F4A7C15L);
+        return seed == 0 ? 1 : seed;
+    }
+
+    /**
+     * @return number of invocations until the next timed one, between 1 and twice the
+     *         timing rate (xorshift generator)
+     */
+    private int nextTimingCountdown() {
+        long s = timingSeed;
+        s ^= s << 13;
+        s ^= s >>> 7;
+        s ^= s << 17;
+        timingSeed = s;
+        return 1 + (int) ((s >>> 1) % (2 * threadTimingRate - 1));
+    }
+
+    /**
+     * Adds the average time of the timed invocations of a method to the children time
+     * of its caller, in place of the time of an invocation that was not timed. The time
+     * of the timed callees of the invocation, which the average already includes, is
+     * passed on instead if there is no average (e.g., the probe was switched to timed
+     * while the invocation was active).
+     * 
+     * @param index method index
+     */
+    private void addUntimedCall(int index) {
+        MethodGroup m = getMethod(index);
+        if (m == null || m.proto.probeMode != PROBE_TIMED) {
+            return;
+        }
+        int caller = findCaller(depth);
+        if (caller < 0) {
+            return;
+        }
+        long timed = m.hits - m.untimedHits;
+        if (m.untimedHits > 0 && timed > 0) {
+            childTimes[caller] += m.netTime / timed;
+        } else {
+            childTimes[caller] += childTimes[depth];
+        }
+    }
+
+    private void beginTransaction0(int globalMethodId, Object[] args) {
+        if (ignored || txSlot >= 0) {
+            return;
+        }
+        int sid = sessionBase;
+        int index = globalMethodId - sid;
+        if (index < 0 || rejectedSession == sid) {
+            return;
+        }
+        if (seenGeneration != generation) {
+            sync(sid);
+            if (rejectedSession == sid) {
+                return;
+            }
+        }
+        MethodGroup proto = getGlobalMethod(index);
+        if (proto == null || proto.transactionMode == Transactions.MODE_NONE
+                || proto.probeMode == PROBE_DISABLED) {
+            return;
+        }
+        txSlot = Transactions.getSlot(proto.transactionMode, proto.name, args);
+        txDepth = depth;
+    }
+
+    private void endTransaction0() {
+        // nested entry methods exit above the depth where the transaction started
+        if (txSlot >= 0 && depth <= txDepth) {
+            txSlot = -1;
+        }
+    }
+
+    /**
+     * @param index method index
+     * @return <code>true</code> if the method is a trigger
+     */
+    private static boolean isTrigger(int index) {
+        MethodGroup proto = getGlobalMethod(index);
+        return proto != null && proto.trigger;
+    }
+
+    /**
+     * Adds the method being entered to the subtree of the slow invocation being captured
+     * (starting a new capture if none is active).
+     * 
+     * @param index method index
+     * @param t time when the method was entered
+     */
+    private void captureEnter(int index, long t) {
+        int node = captureCount;
+        if (node == captureMethods.length && !growCapture()) {
+            captureSkipped++;
+            return;
+        }
+        captureParents[node] = captureNode;
+        captureMethods[node] = index;
+        captureDepths[node] = depth;
+        captureStarts[node] = t;
+        captureCount++;
+        captureNode = node;
+    }
+
+    /**
+     * Closes the innermost node of the subtree being captured. When the root is closed
+     * the subtree is kept if the invocation was slow enough.
+     * 
+     * @param t time when the method exited
+     */
+    private void captureExit(long t) {
+        int node = captureNode;
+        captureTimes[node] = t - captureStarts[node];
+        captureNode = captureParents[node];
+        if (node != 0) {
+            return;
+        }
+        if (captureTimes[0] >= captureThreshold) {
+            int n = captureCount;
+            int[] parents = new int[n];
+            String[] names = new String[n];
+            long[] starts = new long[n];
+            long[] times = new long[n];
+            System.arraycopy(captureParents, 0, parents, 0, n);
+            System.arraycopy(captureTimes, 0, times, 0, n);
+            for (int i = 0; i < n; i++) {
+                MethodGroup proto = getGlobalMethod(captureMethods[i]);
+                names[i] = proto == null ? "?" : proto.name;
+                starts[i] = captureStarts[i] - captureStarts[0];
+            }
+            SlowInvocations.add(new SlowInvocations.Record(thread.getName(),
+                    captureThreshold, captureSkipped, parents, names, starts, times));
+        }
+        captureCount = 0;
+        captureSkipped = 0;
+    }
+
+    /**
+     * Doubles the capacity of the capture arrays of this thread.
+     * 
+     * @return <code>false</code> if they have reached {@link #MAX_CAPTURE_NODES}
+     */
+    private boolean growCapture() {
+        int length = captureMethods.length;
+        if (length >= MAX_CAPTURE_NODES) {
+            return false;
+        }
+        int newLength = Math.max(INITIAL_CALL_DEPTH, length << 1);
+        int[] i;
+        i = new int[newLength];
+        System.arraycopy(captureParents, 0, i, 0, length);
+        captureParents = i;
+        i = new int[newLength];
+        System.arraycopy(captureMethods, 0, i, 0, length);
+        captureMethods = i;
+        i = new int[newLength];
+        System.arraycopy(captureDepths, 0, i, 0, length);
+        captureDepths = i;
+        long[] l;
+        l = new long[newLength];
+        System.arraycopy(captureStarts, 0, l, 0, length);
+        captureStarts = l;
+        l = new long[newLength];
+        System.arraycopy(captureTimes, 0, l, 0, length);
+        captureTimes = l;
+        return true;
+    }
+
+    /**
+     * Discards the subtree being captured, if any.
+     */
+    private void abortCapture() {
+        captureNode = -1;
+        captureCount = 0;
+        captureSkipped = 0;
+    }
+
+    /**
+     * @return current time of the thread according to its clock
+     */
+    private long now() {
+        if (replaying) {
+            return replayTime;
+        }
+        switch (clockType) {
+            case CLOCK_CPU :
+                return threadBean.getCurrentThreadCpuTime();
+            case CLOCK_USER :
+                return threadBean.getCurrentThreadUserTime();
+            default :
+                return System.nanoTime();
+        }
+    }
+
+    /**
+     * Logs an event for the aggregator, handing the log over when it is full.
+     * 
+     * @param globalMethodId global method id for an entry, or its complement for an exit
+     * @return time of the event
+     */
+    private long logEvent(int globalMethodId) {
+        EventLog log = events;
+        int n = log.count;
+        long t = now();
+        log.times[n] = t;
+        log.ids[n] = globalMethodId;
+        log.count = ++n;
+        if (n == log.ids.length) {
+            flushEvents();
+        }
+        return t;
+    }
+
+    /**
+     * Traces an event of a thread that uses the asynchronous engine. Without a call
+     * stack, exits are matched to the current probe mode of the method.
+     * 
+     * @param index method index
+     * @param event global method id for an entry, or its complement for an exit
+     */
+    private void traceAsync(int index, int event) {
+        MethodGroup proto = getGlobalMethod(index);
+        if (proto != null && proto.probeMode != PROBE_DISABLED) {
+            trace.add(event);
+        }
+    }
+
+    /**
+     * Hands the current log over to the aggregator, if not empty, and starts a new one.
+     * This blocks while the aggregator is too far behind.
+     */
+    private void flushEvents() {
+        EventLog log = events;
+        if (log.count == 0) {
+            return;
+        }
+        lastHandover = log.times[log.count - 1];
+        events = aggregator.newLog(log.replay);
+        aggregator.submit(log);
+    }
+
+    /**
+     * Starts or stops logging the events of this thread for the aggregator, according
+     * to the engine of the current session. Must be called by the thread itself.
+     */
+    private void startEngine() {
+        if (asyncEngine && !ignored) {
+            if (replay == null) {
+                // created by this thread, so that the replay refers to it
+                ThreadProfiler r = new ThreadProfiler(false);
+                r.replaying = true;
+                replay = r;
+            }
+            events = aggregator.newLog(replay);
+            logDepth = 0;
+        } else {
+            events = null;
+            if (replay != null) {
+                EventLog log = aggregator.newLog(replay);
+                log.last = true;
+                aggregator.submit(log);
+                replay = null;
+            }
+        }
+    }
+
+    /**
+     * Does nothing. Called during the calibration in place of the recording methods.
+     */
+    private void ignore0() {
+    }
+
+    private void sample0(int[] globalMethodIds, int n, long time) {
+        int sid = sessionBase;
+        if (seenGeneration != generation) {
+            sync(sid);
+        }
+        for (int i = 0; i < n; i++) {
+            if (globalMethodIds[i] < sid) {
+                return;
+            }
+        }
+        if (sampleMarks == null || sampleMarks.length < methods.length) {
+            sampleMarks = new int[methods.length];
+        }
+        sampleCount++;
+        int node = CallTree.ROOT;
+        int parent = -1;
+        MethodGroup m = null;
+        for (int i = 0; i < n; i++) {
+            int index = globalMethodIds[i] - sid;
+            m = getMethod(index);
+            if (m == null) {
+                return;
+            }
+            if (index >= sampleMarks.length) {
+                int[] oldMarks = sampleMarks;
+                sampleMarks = new int[methods.length];
+                System.arraycopy(oldMarks, 0, sampleMarks, 0, oldMarks.length);
+            }
+            if (calls != null) {
+                node = calls.child(node, index);
+                calls.add(node, time);
+            }
+            if (sampleMarks[index] != sampleCount) {
+                sampleMarks[index] = sampleCount;
+                m.hits++;
+                m.netTime += time;
+                if (parent != -1) {
+                    edges.add(parent, index, time, 0);
+                }
+            }
+            parent = index;
+        }
+        if (m != null) {
+            m.selfTime += time;
+        }
+    }
+
+    /**
+     * Brings the state of this thread up to date with the current session, reset epoch
+     * and snapshot epoch. Old sessions lose both their statistics and their call stack,
+     * while a reset keeps the call stack but restarts the timing of active methods. A new
+     * snapshot epoch hands the current buffer over to the snapshot.
+     * 
+     * @param sid current session
+     */
+    private void sync(int sid) {
+        seenGeneration = generation;
+        int se = replaying ? replayEpoch : snapshotEpoch;
+        if (session != sid) {
+            depth = 0;
+            overflowDepth = 0;
+            methods = new MethodGroup[64];
+            recursion = new int[64];
+            edges = new EdgeTable();
+            session = sid;
+            epoch = resetEpoch;
+            bufferEpoch = se;
+            clockType = clock;
+            threadTimingRate = timingRate;
+            timingSeed = timingRandom ? newTimingSeed() : 0;
+            triggerOnlyMode = triggerOnly;
+            rejectedSession = isThreadAccepted(thread) ? -1 : sid;
+            if (!replaying && threadProfiler.get() == this) {
+                if (trace == null && rejectedSession < 0 && !ignored) {
+                    // tracing may have been enabled after this thread started
+                    trace = TraceBuffer.open(thread);
+                }
+                startEngine();
+            }
+            txSlot = -1;
+            abortCapture();
+            startCallTree();
+        } else if (epoch != resetEpoch) {
+            methods = new MethodGroup[methods.length];
+            edges = new EdgeTable();
+            epoch = resetEpoch;
+            bufferEpoch = se;
+            long t = now();
+            long cpu = clockType == CLOCK_BOTH ? threadBean.getCurrentThreadCpuTime() : 0;
+            for (int i = 0; i < depth; i++) {
+                startTimes[i] = t;
+                startCpuTimes[i] = cpu;
+                childTimes[i] = 0;
+            }
+            abortCapture();
+            restoreCallPath();
+        } else if (bufferEpoch != se && events != null) {
+            // the replay flips its buffer when the aggregator reaches this epoch
+            flushEvents();
+            bufferEpoch = se;
+        } else if (bufferEpoch != se) {
+            retiredBuffers.add(new RetiredBuffer(this));
+            methods = new MethodGroup[methods.length];
+            edges = new EdgeTable();
+            bufferEpoch = se;
+            restoreCallPath();
+        }
+    }
+
+    /**
+     * Doubles the capacity of the stack arrays of this thread.
+     * 
+     * @return <code>false</code> if the stack has reached {@link #MAX_CALL_DEPTH}
+     */
+    private boolean growStack() {
+        int length = stack.length;
+        if (length >= MAX_CALL_DEPTH) {
+            if (!overflowReported) {
+                overflowReported = true;
+                Log.print(0, "Call stack of thread " + thread.getName()
+                        + " is too deep, some invocations will not be recorded");
+            }
+            return false;
+        }
+        int newLength = Math.max(INITIAL_CALL_DEPTH, length << 1);
+        long[] l;
+        l = new long[newLength];
+        System.arraycopy(startTimes, 0, l, 0, length);
+        startTimes = l;
+        l = new long[newLength];
+        System.arraycopy(startProbes, 0, l, 0, length);
+        startProbes = l;
+        l = new long[newLength];
+        System.arraycopy(childTimes, 0, l, 0, length);
+        childTimes = l;
+        l = new long[newLength];
+        System.arraycopy(startCpuTimes, 0, l, 0, length);
+        startCpuTimes = l;
+        int[] a;
+        if (nodes != null) {
+            a = new int[newLength];
+            System.arraycopy(nodes, 0, a, 0, length);
+            nodes = a;
+        }
+        a = new int[newLength];
+        System.arraycopy(stack, 0, a, 0, length);
+        stack = a;
+        return true;
+    }
+
+    /**
+     * Starts an empty calling context tree if the current session records it.
+     */
+    private void startCallTree() {
+        if (recordCallTree) {
+            calls = new CallTree();
+            if (nodes == null) {
+                nodes = new int[stack.length];
+            }
+        } else {
+            calls = null;
+        }
+    }
+
+    /**
+     * Starts a new calling context tree that contains the path of the active methods.
+     */
+    private void restoreCallPath() {
+        if (calls == null) {
+            return;
+        }
+        calls = new CallTree();
+        int node = CallTree.ROOT;
+        for (int i = 0; i < depth; i++) {
+            if (stack[i] >= 0) {
+                node = calls.child(node, stack[i]);
+            }
+            nodes[i] = node;
+        }
+    }
+
+    /**
+     * Gets (creating if necessary) the copy of a registered method that holds the
+     * statistics of this thread in the current buffer.
+     * 
+     * @param index method index (global method id minus {@link #sessionBase})
+     * @return method or <code>null</code> if the method is not registered (which may
+     *         happen while a new session is being configured)
+     */
+    private MethodGroup getMethod(int index) {
+        if (index < methods.length && methods[index] != null) {
+            return methods[index];
+        }
+        MethodGroup proto = getGlobalMethod(index);
+        if (proto == null || proto.globalId != session + index) {
+            return null;
+        }
+        if (index >= methods.length) {
+            int newLength = methods.length;
+            while (newLength <= index) {
+                newLength <<= 1;
+            }
+            MethodGroup[] oldMethods = methods;
+            methods = new MethodGroup[newLength];
+            System.arraycopy(oldMethods, 0, methods, 0, oldMethods.length);
+            int[] oldRecursion = recursion;
+            recursion = new int[newLength];
+            System.arraycopy(oldRecursion, 0, recursion, 0, oldRecursion.length);
+        }
+        MethodGroup m = new MethodGroup(proto);
+        methods[index] = m;
+        return m;
+    }
+
+    /**
+     * Adds the statistics held by an array of methods to another. Statistics of other
+     * threads may be merged this way, so the values read may be slightly out of date.
+     * Methods that do not fit in the target array are ignored.
+     * 
+     * @param source methods indexed by method id
+     * @param target methods indexed by method id
+     */
+    private static void merge(MethodGroup[] source, MethodGroup[] target) {
+        int count = Math.min(source.length, target.length);
+        for (int i = 0; i < count; i++) {
+            MethodGroup m = source[i];
+            if (m == null) {
+                continue;
+            }
+            MethodGroup tm = globalCopy(target, m);
+            tm.hits += m.hits;
+            tm.untimedHits += m.untimedHits;
+            tm.netTime += m.netTime;
+            tm.selfTime += m.selfTime;
+            tm.descendantCalls += m.descendantCalls;
+            tm.cpuTime += m.cpuTime;
+            if (m.txHits != null) {
+                long[] hits = m.txHits;
+                tm.transactions(hits.length - 1);
+                for (int s = 0; s < hits.length; s++) {
+                    tm.txHits[s] += hits[s];
+                    tm.txNetTimes[s] += m.txNetTimes[s];
+                    tm.txSelfTimes[s] += m.txSelfTimes[s];
+                }
+            }
+            if (m.histogram != null) {
+                LatencyHistogram.merge(m.histogram, tm.histogram());
+                tm.maxTime = Math.max(tm.maxTime, m.maxTime);
+            }
+        }
+    }
+
+    /**
+     * Gets (creating if necessary) the copy of a method in an array of global methods.
+     */
+    private static MethodGroup globalCopy(MethodGroup[] target, MethodGroup m) {
+        int index = m.index;
+        MethodGroup tm = target[index];
+        if (tm == null) {
+            tm = new MethodGroup(m.globalId, index, m.name);
+            target[index] = tm;
+        }
+        return tm;
+    }
+
+    /**
+     * Simulates an exit() in the whole call stack.
+     * 
+     * @param ti profiler of the thread
+     * @param stats statistics to update
+     * @param group methods of the thread group to update as well (may be
+     *            <code>null</code>)
+     * @param since timings are not accounted before this time
+     */
+    private static void exitWholeStack(ThreadProfiler ti,
+                                       Statistics stats,
+                                       MethodGroup[] group,
+                                       long since) {
+        long t;
+        long cpu = -1;
+        long threadId = ti.thread.getId();
+        switch (ti.clockType) {
+            case CLOCK_CPU :
+                t = threadBean.getThreadCpuTime(threadId);
+                // the reset time is meaningless for this clock
+                since = Long.MIN_VALUE;
+                break;
+            case CLOCK_USER :
+                t = threadBean.getThreadUserTime(threadId);
+                since = Long.MIN_VALUE;
+                break;
+            case CLOCK_BOTH :
+                cpu = threadBean.getThreadCpuTime(threadId);
+                t = System.nanoTime();
+                break;
+            default :
+                t = System.nanoTime();
+        }
+        if (t == -1) {
+            // the thread has died
+            return;
+        }
+        MethodGroup[] globalMethods_ = stats.methods;
+        // the arrays may be replaced by larger ones meanwhile
+        int[] stack_ = ti.stack;
+        long[] startTimes_ = ti.startTimes;
+        long[] startProbes_ = ti.startProbes;
+        long[] childTimes_ = ti.childTimes;
+        long[] startCpuTimes_ = ti.startCpuTimes;
+        int depth_ = Math.min(Math.min(ti.depth, stack_.length), Math.min(
+                startTimes_.length, Math.min(startProbes_.length, childTimes_.length)));
+        depth_ = Math.min(depth_, startCpuTimes_.length);
+        if (stats.calls != null && ti.calls != null) {
+            int node = CallTree.ROOT;
+            for (int i = 0; i < depth_; i++) {
+                if (stack_[i] >= globalMethods_.length) {
+                    break;
+                }
+                if (stack_[i] < 0) {
+                    continue;
+                }
+                node = stats.calls.child(node, stack_[i]);
+                stats.calls.add(node, t - Math.max(startTimes_[i], since));
+            }
+        }
+        int callee = -1;
+        long calleeTime = 0;
+        long calleeDescendants = 0;
+        long innerTime = 0;
+        long probes_ = ti.probes;
+        while (depth_ > 0) {
+            depth_--;
+            int index = stack_[depth_];
+            if (index < 0 && ~index < globalMethods_.length
+                    && getGlobalMethod(~index).probeMode == PROBE_TIMED) {
+                // the time of the finished callees of an untimed invocation is kept in
+                // its own frame, and is not part of the self time of the caller
+                innerTime += childTimes_[depth_];
+                if (callee != -1) {
+                    stats.edges.add(~index, callee, calleeTime, calleeDescendants);
+                }
+                callee = -1;
+                continue;
+            }
+            if (index < 0 || index >= globalMethods_.length
+                    || globalMethods_[index] == null) {
+                continue;
+            }
+            MethodGroup gm = globalMethods_[index];
+            MethodGroup tm = group == null ? null : globalCopy(group, gm);
+            long netTime = t - Math.max(startTimes_[depth_], since);
+            // the innermost timed method above this one is still active
+            long selfTime = Math.max(0, netTime - childTimes_[depth_] - innerTime);
+            gm.selfTime += selfTime;
+            if (tm != null) {
+                tm.selfTime += selfTime;
+            }
+            innerTime = netTime;
+            if (isRecursiveFrame(stack_, depth_)) {
+                continue;
+            }
+            long descendantCalls = Math.max(0, probes_ - startProbes_[depth_]);
+            gm.hits++;
+            gm.netTime += netTime;
+            if (tm != null) {
+                tm.hits++;
+                tm.netTime += netTime;
+            }
+            gm.descendantCalls += descendantCalls;
+            gm.histogram()[LatencyHistogram.bucket(netTime)]++;
+            gm.maxTime = Math.max(gm.maxTime, netTime);
+            if (cpu != -1) {
+                gm.cpuTime += Math.max(0, cpu - startCpuTimes_[depth_]);
+            }
+            if (callee != -1) {
+                stats.edges.add(index, callee, calleeTime, calleeDescendants);
+            }
+            callee = index;
+            calleeTime = netTime;
+            calleeDescendants = descendantCalls;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the method at a given stack position is also active
+     *         in an older frame, timed or not (so its hit is counted there)
+     */
+    private static boolean isRecursiveFrame(int[] stack_, int pos) {
+        for (int i = 0; i < pos; i++) {
+            if (stack_[i] == stack_[pos] || stack_[i] == ~stack_[pos]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a snapshot with all methods. If a method is currently active it is assumed
+     * a <code>methodExit</code> now.
+     * <p>
+     * Application threads are never blocked by this method, and the snapshot is written
+     * only after all monitors have been released, so a slow output stream affects no one
+     * but the caller.
+     */
+    public static void createSnapshot(OutputStream os) throws IOException {
+        writeSnapshot(os, takeSnapshot(false));
+    }
+
+    /**
+     * Creates a snapshot of the invocations handed over since the previous delta
+     * snapshot (or since the last reset, for the first one), without disturbing the
+     * statistics seen by {@link #createSnapshot(OutputStream)}. Each invocation is
+     * counted in exactly one delta snapshot: buffers of threads that did not hand them
+     * over and active methods are left for the following ones.
+     * 
+     * @param os output to write
+     * @throws IOException
+     */
+    static void createDeltaSnapshot(OutputStream os) throws IOException {
+        writeSnapshot(os, takeSnapshot(true));
+    }
+
+    private static void writeSnapshot(OutputStream os, Statistics stats)
+        throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(os);
+        DataOutputStream dos = new DataOutputStream(bos);
+        serialize(dos, stats);
+        dos.flush();
+    }
+
+    /**
+     * Builds the global view of the statistics.
+     * <p>
+     * The snapshot epoch is incremented first, which makes every thread hand over its
+     * current buffer the next time it records a method. After waiting a little for the
+     * threads that are running, all handed over buffers are added to
+     * {@link #accumulated}. Buffers of threads that did not hand them over (most
+     * likely because they are blocked) are read in place but not accumulated, as they
+     * will be handed over later.
+     * <p>
+     * The handed over buffers of the current session are also added to {@link #delta}
+     * once delta snapshots are taken.
+     * 
+     * @param deltaMode whether to return (and restart) {@link #delta} instead of the
+     *            statistics since the last reset
+     * @return statistics of all threads
+     */
+    private static Statistics takeSnapshot(boolean deltaMode) {
+        synchronized (snapshotLock) {
+            int sid;
+            Statistics stats;
+            synchronized (globalLock) {
+                sid = sessionBase;
+                stats = new Statistics(methodCount, recordCallTree);
+                stats.probeCost = probeCost;
+                stats.innerProbeCost = innerProbeCost;
+                stats.overflowCalls = overflowCalls.get();
+                stats.clock = clock;
+                stats.transactionKeys = Transactions.getKeys();
+                stats.otherTransaction = Transactions.getMaxKeys();
+                stats.threadMode = threadStats;
+                stats.timingRate = timingRate;
+                stats.probeModes = new byte[methodCount];
+                for (int i = 0; i < methodCount; i++) {
+                    MethodGroup m = getGlobalMethod(i);
+                    stats.methods[i] = new MethodGroup(m.globalId, i, m.name);
+                    stats.probeModes[i] = m.probeMode;
+                }
+            }
+            List<ThreadProfiler> threads;
+            List<EventLog> lastLogs;
+            synchronized (registryLock) {
+                lastLogs = sweepDeadThreads();
+                threads = new ArrayList<ThreadProfiler>(globalThreadInfos);
+            }
+            submitLastLogs(lastLogs);
+            int epoch = resetEpoch;
+            int se = ++snapshotEpoch;
+            generation++;
+            awaitBufferFlips(threads, se);
+            if (aggregator != null) {
+                aggregator.drain(se);
+            }
+
+            if (accumulatedSession != sid || accumulatedEpoch != epoch) {
+                accumulated = new Statistics(0, false);
+                accumulatedThreads = new HashMap<String, MethodGroup[]>();
+                accumulatedSession = sid;
+                accumulatedEpoch = epoch;
+            }
+            accumulated.ensureCapacity(stats.methods.length, stats.calls != null);
+            int n = stats.methods.length;
+            int mode = stats.threadMode;
+            if (delta != null && deltaSession != sid) {
+                delta = null;
+            }
+            if (delta == null && deltaMode) {
+                // the first period starts at the last reset
+                delta = new Statistics(0, false);
+                deltaThreads = new HashMap<String, MethodGroup[]>();
+                deltaSession = sid;
+                delta.ensureCapacity(n, stats.calls != null);
+                delta.add(accumulated.methods, accumulated.edges, accumulated.calls);
+                for (Map.Entry<String, MethodGroup[]> e : accumulatedThreads.entrySet()) {
+                    merge(e.getValue(), getThreadMethods(deltaThreads, e.getKey(), n));
+                }
+            }
+            if (delta != null) {
+                delta.ensureCapacity(n, stats.calls != null);
+            }
+            Set<ThreadProfiler> flipped = new HashSet<ThreadProfiler>();
+            RetiredBuffer rb;
+            while ((rb = retiredBuffers.poll()) != null) {
+                if (rb.session == sid && rb.epoch == epoch) {
+                    accumulated.add(rb.methods, rb.edges, rb.calls);
+                    if (mode != THREADS_OFF) {
+                        merge(rb.methods, getThreadMethods(accumulatedThreads,
+                                                           getThreadKey(rb.owner.thread,
+                                                                        mode), n));
+                    }
+                }
+                // resets of the statistics do not concern the delta snapshots
+                if (delta != null && rb.session == sid) {
+                    delta.add(rb.methods, rb.edges, rb.calls);
+                    if (mode != THREADS_OFF) {
+                        merge(rb.methods, getThreadMethods(deltaThreads,
+                                                           getThreadKey(rb.owner.thread,
+                                                                        mode), n));
+                    }
+                }
+                if (rb.bufferEpoch == se - 1) {
+                    flipped.add(rb.owner);
+                }
+            }
+            Statistics source = deltaMode ? delta : accumulated;
+            Map<String, MethodGroup[]> sourceThreads = deltaMode ? deltaThreads
+                    : accumulatedThreads;
+            stats.add(source.methods, source.edges, source.calls);
+            if (mode != THREADS_OFF) {
+                stats.threads = new TreeMap<String, MethodGroup[]>();
+                for (Map.Entry<String, MethodGroup[]> e : sourceThreads.entrySet()) {
+                    merge(e.getValue(), getThreadMethods(stats.threads, e.getKey(), n));
+                }
+            }
+            if (deltaMode) {
+                stats.delta = true;
+                delta = new Statistics(0, false);
+                deltaThreads = new HashMap<String, MethodGroup[]>();
+            }
+
+            // a delta snapshot leaves the buffers that were not handed over, and the
+            // active methods, to the next one
+            List<ThreadProfiler> active = deltaMode ? new ArrayList<ThreadProfiler>()
+                    : threads;
+            long since = resetTime;
+            for (ThreadProfiler t : active) {
+                ThreadProfiler ti = getRecorder(t);
+                if (ti.session != sid) {
+                    continue;
+                }
+                MethodGroup[] group = null;
+                if (mode != THREADS_OFF) {
+                    String key = getThreadKey(ti.thread, mode);
+                    group = getThreadMethods(stats.threads, key, n);
+                }
+                if (!flipped.contains(ti) && ti.epoch == epoch) {
+                    // The thread may still be recording into this buffer, as nothing
+                    // stops it: the snapshot may see a hit without its time, or miss
+                    // an edge while the table is rehashed. Blocked threads do not
+                    // change their buffers, so only running ones are reported.
+                    if (ti.thread.getState() == Thread.State.RUNNABLE) {
+                        stats.inPlaceThreads++;
+                    }
+                    stats.add(ti.methods, ti.edges, ti.calls);
+                    if (group != null) {
+                        merge(ti.methods, group);
+                    }
+                }
+                exitWholeStack(ti, stats, group, since);
+            }
+            if (stats.inPlaceThreads > 0) {
+                Log.print(1, "Snapshot read the buffers of " + stats.inPlaceThreads
+                        + " running threads in place");
+            }
+            if (stats.timingRate > 1) {
+                extrapolate(stats.methods, stats.edges);
+                if (stats.threads != null) {
+                    for (MethodGroup[] group : stats.threads.values()) {
+                        extrapolate(group, null);
+                    }
+                }
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Scales the times of the methods that were not timed in every invocation by the
+     * ratio of their hits to their timed invocations, which estimates the times of all
+     * their invocations (see {@link #setTimingRate(int)}).
+     * 
+     * @param methods methods to update, indexed by method id
+     * @param edges time spent by the methods in their callees, scaled by the ratio of
+     *            the callee (may be <code>null</code>)
+     */
+    private static void extrapolate(MethodGroup[] methods, EdgeTable edges) {
+        double[] ratios = new double[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            MethodGroup m = methods[i];
+            ratios[i] = 1;
+            if (m == null || m.untimedHits == 0 || m.hits == m.untimedHits) {
+                continue;
+            }
+            double r = (double) m.hits / (m.hits - m.untimedHits);
+            ratios[i] = r;
+            m.netTime = Math.round(m.netTime * r);
+            m.selfTime = Math.round(m.selfTime * r);
+            m.cpuTime = Math.round(m.cpuTime * r);
+            m.descendantCalls = Math.round(m.descendantCalls * r);
+        }
+        if (edges != null) {
+            edges.scale(ratios);
+        }
+    }
+
+    /**
+     * Waits (for no longer than {@link #BUFFER_FLIP_TIMEOUT}) until all running threads
+     * have started a buffer in a given snapshot epoch. The buffers of the threads that
+     * are late are read in place, and counted in {@link Statistics#inPlaceThreads}.
+     */
+    private static void awaitBufferFlips(List<ThreadProfiler> threads, int se) {
+        long deadline = System.currentTimeMillis() + BUFFER_FLIP_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            boolean pending = false;
+            for (ThreadProfiler ti : threads) {
+                if (ti.bufferEpoch != se && ti.thread.getState() == Thread.State.RUNNABLE) {
+                    pending = true;
+                    break;
+                }
+            }
+            if (!pending) {
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Inner classes
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Internal data structure that contains statistics about a single method. It is
+     * optimized for performance and should not be used outside this file.
+     */
+    private static class MethodGroup {
+
+        public int globalId;
+        /**
+         * Global id minus the base of the session.
+         */
+        public int index;
+        public String name;
+        public long netTime;
+        public long childRecursiveTime;
+        public long selfTime;
+        public int hits;
+        /**
+         * Number of instrumented calls made while the method was active (only in the
+         * invocations accounted in {@link #hits}).
+         */
+        public long descendantCalls;
+        /**
+         * CPU time of the invocations accounted in {@link #hits}, if recorded.
+         */
+        public long cpuTime;
+        /**
+         * Latency histogram of the invocations accounted in {@link #hits}, allocated only
+         * by the copies that hold statistics (see {@link #histogram()}).
+         */
+        public long[] histogram;
+        /**
+         * Longest invocation accounted in {@link #hits}.
+         */
+        public long maxTime;
+        /**
+         * Invocations accounted in {@link #hits} that were not timed (see
+         * {@link ThreadProfiler#setTimingRate(int)}).
+         */
+        public int untimedHits;
+        /**
+         * Invocations left until the next timed one (only in the copies of a thread).
+         */
+        public int timingCountdown;
+        /**
+         * Registered method of which this one is a copy (or this method itself).
+         */
+        public MethodGroup proto;
+        /**
+         * Probe mode of the method (see {@link ThreadProfiler#PROBE_TIMED}), kept only
+         * by the registered method. The recording path reads it without synchronization,
+         * so threads may take a while to notice a demotion.
+         */
+        public byte probeMode = PROBE_TIMED;
+        /**
+         * Probe mode the method had before it was disabled, restored when it is enabled
+         * again. Kept only by the registered method.
+         */
+        public byte disabledFrom = PROBE_TIMED;
+        /**
+         * Time in nanoseconds above which the call subtree of an invocation is kept, or
+         * <code>0</code> if not captured. Kept only by the registered method.
+         */
+        public long slowThreshold;
+        /**
+         * Whether the method is a trigger (see {@link ThreadProfiler#setTrigger(int)}).
+         * Kept only by the registered method.
+         */
+        public boolean trigger;
+        /**
+         * How the method starts transactions (see {@link Transactions#MODE_NONE}). Kept
+         * only by the registered method.
+         */
+        public int transactionMode = Transactions.MODE_NONE;
+        /**
+         * Hits, net times and self times of the method in each transaction, indexed by
+         * slot (see {@link #transactions(int)}).
+         */
+        public long[] txHits;
+        public long[] txNetTimes;
+        public long[] txSelfTimes;
+
+        /**
+         * Constructor.
+         * @param globalId
+         * @param index
+         * @param name
+         */
+        public MethodGroup(int globalId, int index, String name) {
+            this.globalId = globalId;
+            this.index = index;
+            this.name = name;
+            this.proto = this;
+        }
+
         /**
-         * Copy constructor.
-         * @param m prototype instance
+         * Creates a copy of a registered method to hold the statistics of a thread.
+         * @param proto registered method
          */
-        public MethodGroup(MethodGroup m) {
-            globalId = m.globalId;
-            name = m.name;
-            netTime = m.netTime;
-            selfTime = m.selfTime;
-            hits = m.hits;
-            childCount = m.childCount;
-            children = new MethodGroup[m.children.length];
-            System.arraycopy(m.children, 0, children, 0, m.childCount);
-            childrenTimes = new long[m.childrenTimes.length];
-            System.arraycopy(m.childrenTimes, 0, childrenTimes, 0, m.childCount);
+        public MethodGroup(MethodGroup proto) {
+            this(proto.globalId, proto.index, proto.name);
+            this.proto = proto;
+            this.histogram = new long[LatencyHistogram.BUCKETS];
         }
 
         /**
-         * Updates this method's info with the time spent in a given child.
+         * Allocates the per-transaction statistics if necessary.
          * 
-         * @param child child method
-         * @param time time spent in the child
-         */
-        public void addChildTime(MethodGroup child, long time) {
-            /*
-             * We may need to improve this search in the future. However, as far as I�ve
-             * measured, it does not seem have a significant perfomance penalty right now,
-             * as most of the time the child count are really small (less than 10). It is
-             * worth noting that some complex programs suchs as JBoss require very large
-             * child arrays.
-             */
-            int index = -1;
-            for (int i = 0; i < childCount; i++) {
-                if (children[i] == child) {
-                    index = i;
-                    break;
+         * @param slot slot that must fit in the arrays
+         * @return this method
+         */
+        public MethodGroup transactions(int slot) {
+            if (txHits == null || slot >= txHits.length) {
+                int n = Math.max(slot + 1, Transactions.getSlotCount());
+                long[] hits = new long[n];
+                long[] netTimes = new long[n];
+                long[] selfTimes = new long[n];
+                if (txHits != null) {
+                    System.arraycopy(txHits, 0, hits, 0, txHits.length);
+                    System.arraycopy(txNetTimes, 0, netTimes, 0, txHits.length);
+                    System.arraycopy(txSelfTimes, 0, selfTimes, 0, txHits.length);
                 }
+                txHits = hits;
+                txNetTimes = netTimes;
+                txSelfTimes = selfTimes;
             }
-            if (index == -1) {
-                // Resize children arrays if required
-                if (childCount == children.length) {
-                    int newChildCount = childCount + (childCount >> 1);
-                    MethodGroup[] oldChildren = children;
-                    children = new MethodGroup[newChildCount];
-                    System.arraycopy(oldChildren, 0, children, 0, childCount);
-                    long[] oldChildrenTimes = childrenTimes;
-                    childrenTimes = new long[newChildCount];
-                    System.arraycopy(oldChildrenTimes, 0, childrenTimes, 0, childCount);
-                }
-                // If the supplied childId was not found then add it to this group�s list.
-                children[childCount] = child;
-                index = childCount++;
+            return this;
+        }
+
+        /**
+         * @return the latency histogram, allocated if necessary
+         */
+        public long[] histogram() {
+            if (histogram == null) {
+                histogram = new long[LatencyHistogram.BUCKETS];
             }
-            childrenTimes[index] += time;
+            return histogram;
         }
 
         public void reset() {
             hits = 0;
             netTime = 0;
             selfTime = 0;
+            childRecursiveTime = 0;
         }
 
         @Override
@@ -418,15 +2660,320 @@ public class ThreadProfiler {
         }
     }
 
+    /**
+     * Compiled thread filter (see {@link #setThreadFilter(String)}).
+     */
+    private static class ThreadFilter {
+
+        public Pattern[] patterns;
+        /**
+         * Whether each pattern accepts the threads it matches.
+         */
+        public boolean[] accepts;
+        /**
+         * Whether each pattern is matched against the name of the thread group.
+         */
+        public boolean[] groups;
+        /**
+         * Whether the threads matched by no pattern are profiled.
+         */
+        public boolean acceptOthers = true;
+
+        public ThreadFilter(int size) {
+            patterns = new Pattern[size];
+            accepts = new boolean[size];
+            groups = new boolean[size];
+        }
+    }
+
+    /**
+     * Buffer of statistics handed over by a thread.
+     */
+    private static class RetiredBuffer {
+
+        public ThreadProfiler owner;
+        public int session;
+        public int epoch;
+        public int bufferEpoch;
+        public MethodGroup[] methods;
+        public EdgeTable edges;
+        public CallTree calls;
+
+        /**
+         * Captures the current buffer of a thread. This must be called either by the
+         * thread itself or after the thread has died.
+         * @param ti profiler of the thread
+         */
+        public RetiredBuffer(ThreadProfiler ti) {
+            owner = ti;
+            session = ti.session;
+            epoch = ti.epoch;
+            bufferEpoch = ti.bufferEpoch;
+            methods = ti.methods;
+            edges = ti.edges;
+            calls = ti.calls;
+        }
+    }
+
+    /**
+     * Batch of events logged by a thread for the aggregator. A log with a barrier
+     * carries no events and marks the start of a snapshot epoch instead.
+     */
+    private static class EventLog {
+
+        public ThreadProfiler replay;
+        /**
+         * Times of the events according to the clock of the thread.
+         */
+        public final long[] times;
+        /**
+         * Global method ids of the entries, or their complements for the exits.
+         */
+        public final int[] ids;
+        public int count;
+        /**
+         * Whether no logs follow this one, as the thread has died or left the
+         * asynchronous engine.
+         */
+        public boolean last;
+        public CountDownLatch barrier;
+        public int epoch;
+
+        public EventLog(int size) {
+            times = new long[size];
+            ids = new int[size];
+        }
+    }
+
+    /**
+     * Background thread that replays the events logged by the threads in asynchronous
+     * mode (see {@link ThreadProfiler#setAsyncEngine(boolean)}). The logs are processed
+     * in the order they are handed over, so the events of each thread are replayed in
+     * order. Threads that hand over logs while too many are pending are blocked until
+     * the aggregator catches up.
+     */
+    private static class Aggregator extends Thread {
+
+        private final BlockingQueue<EventLog> pending = new LinkedBlockingQueue<EventLog>(
+                MAX_PENDING_LOGS);
+        private final Queue<EventLog> free = new ConcurrentLinkedQueue<EventLog>();
+        /**
+         * Replays of the threads that are still alive, only accessed by the aggregator.
+         */
+        private final Set<ThreadProfiler> replays = new HashSet<ThreadProfiler>();
+
+        public Aggregator() {
+            super("PROFILER4J_AGGREGATOR");
+            setDaemon(true);
+        }
+
+        /**
+         * @param replay replay of the thread that will fill the log
+         * @return empty log, recycled if possible
+         */
+        public EventLog newLog(ThreadProfiler replay) {
+            EventLog log = free.poll();
+            if (log == null) {
+                log = new EventLog(EVENT_LOG_SIZE);
+            }
+            log.replay = replay;
+            log.count = 0;
+            log.last = false;
+            return log;
+        }
+
+        /**
+         * Queues a log, waiting for room if needed. Interruptions are deferred, as the
+         * events would be lost otherwise.
+         */
+        public void submit(EventLog log) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    pending.put(log);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits (for no longer than {@link #AGGREGATION_TIMEOUT}) until the logs handed
+         * over so far are replayed, and makes the replays start a buffer in a new
+         * snapshot epoch.
+         * 
+         * @param se snapshot epoch
+         */
+        public void drain(int se) {
+            EventLog barrier = new EventLog(0);
+            barrier.barrier = new CountDownLatch(1);
+            barrier.epoch = se;
+            try {
+                if (pending.offer(barrier, AGGREGATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    barrier.barrier.await(AGGREGATION_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // the replays that are behind are read in place
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                EventLog log;
+                try {
+                    log = pending.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (log.barrier != null) {
+                    replayEpoch = log.epoch;
+                    int sid = sessionBase;
+                    for (ThreadProfiler r : replays) {
+                        r.sync(sid);
+                    }
+                    log.barrier.countDown();
+                    continue;
+                }
+                try {
+                    replay(log);
+                } catch (RuntimeException e) {
+                    Log.print(0, "Cannot aggregate the events of thread "
+                            + log.replay.thread.getName(), e);
+                }
+                log.replay = null;
+                free.offer(log);
+            }
+        }
+
+        private void replay(EventLog log) {
+            ThreadProfiler r = log.replay;
+            replays.add(r);
+            long[] times = log.times;
+            int[] ids = log.ids;
+            for (int i = 0; i < log.count; i++) {
+                r.replayTime = times[i];
+                if (ids[i] >= 0) {
+                    r.enter0(ids[i]);
+                } else {
+                    r.exit0(~ids[i]);
+                }
+            }
+            if (log.last) {
+                replays.remove(r);
+                retiredBuffers.add(new RetiredBuffer(r));
+            }
+        }
+    }
+
+    /**
+     * Statistics of many threads put together.
+     */
+    private static class Statistics {
+
+        public MethodGroup[] methods;
+        public EdgeTable edges = new EdgeTable();
+        public CallTree calls;
+        /**
+         * Probe mode of each method, or <code>null</code> if not known.
+         */
+        public byte[] probeModes;
+        /**
+         * Probe overhead when the statistics were collected (see {@link #probeCost}).
+         */
+        public double probeCost;
+        public double innerProbeCost;
+        /**
+         * Invocations not recorded because of the depth limit.
+         */
+        public long overflowCalls;
+        /**
+         * Threads that had not handed over their buffers when the snapshot was taken and
+         * were still running, so their buffers were read while they could be updated.
+         * The figures of these threads may be slightly inconsistent.
+         */
+        public int inPlaceThreads;
+        /**
+         * Clock used to measure the times.
+         */
+        public int clock;
+        /**
+         * Keys of the transactions, indexed by slot.
+         */
+        public String[] transactionKeys;
+        /**
+         * Slot of the transactions whose keys have no slot of their own.
+         */
+        public int otherTransaction;
+        /**
+         * Breakdown by thread (see {@link #THREADS_OFF}).
+         */
+        public int threadMode;
+        /**
+         * Methods of each thread group, sorted by group key, or <code>null</code>.
+         */
+        public Map<String, MethodGroup[]> threads;
+        /**
+         * Timing rate of the session (see {@link #setTimingRate(int)}).
+         */
+        public int timingRate = 1;
+        /**
+         * Whether these are the statistics of one period only (see
+         * {@link ThreadProfiler#createDeltaSnapshot(OutputStream)}).
+         */
+        public boolean delta;
+
+        /**
+         * Constructor.
+         * @param methodCount number of registered methods
+         * @param callTree whether the calling context tree must be kept as well
+         */
+        public Statistics(int methodCount, boolean callTree) {
+            methods = new MethodGroup[methodCount];
+            calls = callTree ? new CallTree() : null;
+        }
+
+        public void ensureCapacity(int methodCount, boolean callTree) {
+            if (methods.length < methodCount) {
+                MethodGroup[] oldMethods = methods;
+                methods = new MethodGroup[methodCount];
+                System.arraycopy(oldMethods, 0, methods, 0, oldMethods.length);
+            }
+            if (callTree && calls == null) {
+                calls = new CallTree();
+            }
+        }
+
+        /**
+         * Adds the statistics of a buffer. Methods that do not fit are ignored.
+         * @param methods_ methods indexed by method id
+         * @param edges_ time spent in callees
+         * @param calls_ calling context tree (may be <code>null</code>)
+         */
+        public void add(MethodGroup[] methods_, EdgeTable edges_, CallTree calls_) {
+            merge(methods_, methods);
+            edges_.mergeInto(edges);
+            if (calls_ != null && calls != null) {
+                calls_.mergeInto(calls);
+            }
+        }
+    }
+
     /**
      * Serializes the statistics about a group of methods.
      * 
      * @param out output to write
-     * @param methods array of methods
+     * @param stats statistics to write
      * @throws IOException
      */
-    private static void serialize(DataOutputStream out, MethodGroup[] methods)
+    private static void serialize(DataOutputStream out, Statistics stats)
         throws IOException {
+        MethodGroup[] methods = stats.methods;
+        EdgeTable edges = stats.edges;
         out.writeInt(SNAPSHOT_MAGIC);
         out.writeInt(SNAPSHOT_PROTOCOL_VERSION);
         out.writeInt(SNAPSHOT_TYPE_CALLTRACE);
@@ -434,26 +2981,370 @@ public class ThreadProfiler {
         out.writeLong(System.currentTimeMillis());
         int n = 0;
         for (MethodGroup m : methods) {
-            if (m.hits > 0) {
+            if (m != null && m.hits > 0) {
                 n++;
             }
         }
         out.writeInt(n);
-        for (MethodGroup m : methods) {
-            if (m.hits == 0) {
+        int[][] children = groupEdgesByCaller(methods, edges);
+        for (int i = 0; i < methods.length; i++) {
+            MethodGroup m = methods[i];
+            if (m == null || m.hits == 0) {
                 continue;
             }
-            out.writeInt(m.globalId & 0xffff);
+            out.writeInt(m.globalId);
             out.writeUTF(m.name);
             out.writeInt(m.hits);
             out.writeLong(m.netTime);
             out.writeLong(m.selfTime);
-            out.writeInt(m.childCount);
-            for (int i = 0; i < m.childCount; i++) {
-                out.writeInt(m.children[i].globalId & 0xffff);
-                out.writeLong(m.childrenTimes[i]);
+            int[] slots = children[i];
+            out.writeInt(slots.length);
+            for (int slot : slots) {
+                out.writeInt(methods[edges.getCallee(slot)].globalId);
+                out.writeLong(edges.getTime(slot));
+            }
+        }
+        if (stats.calls != null) {
+            out.writeInt(SNAPSHOT_TYPE_CALLTREE);
+            serializeCallTree(out, methods, stats.calls);
+        }
+        if (stats.probeModes != null) {
+            serializeDemotions(out, methods, stats.probeModes);
+        }
+        if (stats.probeCost > 0) {
+            out.writeInt(SNAPSHOT_TYPE_COMPENSATED);
+            serializeCompensatedTimes(out, stats, children);
+        }
+        if (stats.overflowCalls > 0) {
+            out.writeInt(SNAPSHOT_TYPE_OVERFLOW);
+            out.writeLong(stats.overflowCalls);
+        }
+        if (stats.clock != CLOCK_WALL) {
+            out.writeInt(SNAPSHOT_TYPE_CLOCK);
+            out.writeInt(stats.clock);
+            if (stats.clock == CLOCK_BOTH) {
+                for (MethodGroup m : methods) {
+                    if (m != null && m.hits > 0) {
+                        out.writeLong(m.cpuTime);
+                    }
+                }
+            }
+        }
+        out.writeInt(SNAPSHOT_TYPE_HISTOGRAM);
+        serializeHistograms(out, methods);
+        if (stats.timingRate > 1) {
+            out.writeInt(SNAPSHOT_TYPE_TIMING);
+            out.writeInt(stats.timingRate);
+            for (MethodGroup m : methods) {
+                if (m != null && m.hits > 0) {
+                    out.writeLong(m.hits - m.untimedHits);
+                }
+            }
+        }
+        if (stats.transactionKeys != null) {
+            serializeTransactions(out, stats);
+        }
+        if (stats.threads != null) {
+            serializeThreads(out, stats);
+        }
+        if (stats.delta) {
+            out.writeInt(SNAPSHOT_TYPE_DELTA);
+        }
+        if (stats.inPlaceThreads > 0) {
+            out.writeInt(SNAPSHOT_TYPE_IN_PLACE);
+            out.writeInt(stats.inPlaceThreads);
+        }
+        out.writeInt(SNAPSHOT_END);
+    }
+
+    /**
+     * Serializes the statistics of the methods in each transaction, if any was recorded.
+     * The section lists the transactions, "other" last, each one as its key followed by
+     * the number of methods and the global id, hits, net time and self time of each
+     * method.
+     * 
+     * @param out output to write
+     * @param stats statistics to write
+     * @throws IOException
+     */
+    private static void serializeTransactions(DataOutputStream out, Statistics stats)
+        throws IOException {
+        MethodGroup[] methods = stats.methods;
+        String[] keys = stats.transactionKeys;
+        int[] slots = new int[keys.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            slots[i] = i;
+        }
+        slots[keys.length] = stats.otherTransaction;
+        int[] counts = new int[slots.length];
+        boolean any = false;
+        for (MethodGroup m : methods) {
+            if (m == null || m.hits == 0 || m.txHits == null) {
+                continue;
+            }
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] < m.txHits.length && m.txHits[slots[i]] > 0) {
+                    counts[i]++;
+                    any = true;
+                }
+            }
+        }
+        if (!any) {
+            return;
+        }
+        out.writeInt(SNAPSHOT_TYPE_TRANSACTIONS);
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            int s = slots[i];
+            out.writeUTF(i < keys.length ? keys[i] : Transactions.OTHER_KEY);
+            out.writeInt(counts[i]);
+            for (MethodGroup m : methods) {
+                if (m == null || m.hits == 0 || m.txHits == null || s >= m.txHits.length
+                        || m.txHits[s] == 0) {
+                    continue;
+                }
+                out.writeInt(m.globalId);
+                out.writeLong(m.txHits[s]);
+                out.writeLong(m.txNetTimes[s]);
+                out.writeLong(m.txSelfTimes[s]);
+            }
+        }
+    }
+
+    /**
+     * Serializes the statistics of the methods in each thread group. The section
+     * starts with the breakdown mode and lists the groups that recorded any method,
+     * sorted by key, each one as its key followed by the number of methods and the
+     * global id, hits, net time and self time of each method.
+     * 
+     * @param out output to write
+     * @param stats statistics to write
+     * @throws IOException
+     */
+    private static void serializeThreads(DataOutputStream out, Statistics stats)
+        throws IOException {
+        MethodGroup[] methods = stats.methods;
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, MethodGroup[]> e : stats.threads.entrySet()) {
+            MethodGroup[] group = e.getValue();
+            int n = 0;
+            for (int i = 0; i < group.length; i++) {
+                if (isThreadMethod(methods, group, i)) {
+                    n++;
+                }
+            }
+            if (n > 0) {
+                counts.put(e.getKey(), n);
+            }
+        }
+        out.writeInt(SNAPSHOT_TYPE_THREADS);
+        out.writeInt(stats.threadMode);
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            MethodGroup[] group = stats.threads.get(e.getKey());
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue());
+            for (int i = 0; i < group.length; i++) {
+                if (isThreadMethod(methods, group, i)) {
+                    out.writeInt(group[i].globalId);
+                    out.writeLong(group[i].hits);
+                    out.writeLong(group[i].netTime);
+                    out.writeLong(group[i].selfTime);
+                }
+            }
+        }
+    }
+
+    private static boolean isThreadMethod(MethodGroup[] methods,
+                                          MethodGroup[] group,
+                                          int index) {
+        return group[index] != null && group[index].hits > 0 && index < methods.length
+                && methods[index] != null && methods[index].hits > 0;
+    }
+
+    /**
+     * Serializes the latency histograms of the methods written in the main section, in
+     * the same order. Each one is written as the longest time followed by the number of
+     * non-empty buckets and a pair (bucket, count) for each of them.
+     * 
+     * @param out output to write
+     * @param methods methods indexed by method id
+     * @throws IOException
+     */
+    private static void serializeHistograms(DataOutputStream out, MethodGroup[] methods)
+        throws IOException {
+        for (MethodGroup m : methods) {
+            if (m == null || m.hits == 0) {
+                continue;
+            }
+            out.writeLong(m.maxTime);
+            long[] h = m.histogram;
+            int n = 0;
+            if (h != null) {
+                for (long count : h) {
+                    if (count > 0) {
+                        n++;
+                    }
+                }
+            }
+            out.writeInt(n);
+            for (int i = 0; n > 0 && i < h.length; i++) {
+                if (h[i] > 0) {
+                    out.writeInt(i);
+                    out.writeLong(h[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes the times of the methods minus the estimated probe overhead. Each
+     * descendant call adds {@link Statistics#probeCost} to the net time of a method,
+     * while each invocation adds {@link Statistics#innerProbeCost} to its own net time.
+     * The probe costs are written first, followed by the same methods and children
+     * written in the main section, in the same order.
+     * 
+     * @param out output to write
+     * @param stats statistics to write
+     * @param children slots of the edges of each caller, indexed by method id
+     * @throws IOException
+     */
+    private static void serializeCompensatedTimes(DataOutputStream out,
+                                                  Statistics stats,
+                                                  int[][] children) throws IOException {
+        MethodGroup[] methods = stats.methods;
+        EdgeTable edges = stats.edges;
+        double outer = stats.probeCost;
+        double inner = stats.innerProbeCost;
+        out.writeDouble(outer);
+        out.writeDouble(inner);
+        for (int i = 0; i < methods.length; i++) {
+            MethodGroup m = methods[i];
+            if (m == null || m.hits == 0) {
+                continue;
+            }
+            out.writeLong(compensate(m.netTime, m.descendantCalls, m.hits, outer, inner));
+            for (int slot : children[i]) {
+                long time = compensate(edges.getTime(slot), edges.getDescendantCalls(slot),
+                                       edges.getCount(slot), outer, inner);
+                out.writeLong(time);
+            }
+        }
+    }
+
+    private static long compensate(long time,
+                                   long descendantCalls,
+                                   int calls,
+                                   double outer,
+                                   double inner) {
+        return Math.max(0, time - Math.round(descendantCalls * outer + calls * inner));
+    }
+
+    /**
+     * Serializes the list of methods with demoted probes, if not empty. Each entry is
+     * made of the method id and its probe mode.
+     * 
+     * @param out output to write
+     * @param methods methods indexed by method id
+     * @param modes probe mode of each method, indexed by method id
+     * @throws IOException
+     */
+    private static void serializeDemotions(DataOutputStream out,
+                                           MethodGroup[] methods,
+                                           byte[] modes) throws IOException {
+        int n = 0;
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i] != PROBE_TIMED && methods[i] != null && methods[i].hits > 0) {
+                n++;
             }
         }
+        if (n == 0) {
+            return;
+        }
+        out.writeInt(SNAPSHOT_TYPE_DEMOTED);
+        out.writeInt(n);
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i] != PROBE_TIMED && methods[i] != null && methods[i].hits > 0) {
+                out.writeInt(methods[i].globalId);
+                out.writeInt(modes[i]);
+            }
+        }
+    }
+
+    /**
+     * Serializes a calling context tree. Nodes are written parents first and numbered
+     * from 1 (0 being the root). Paths that contain methods that are not serialized are
+     * left out.
+     * 
+     * @param out output to write
+     * @param methods methods indexed by method id
+     * @param calls calling context tree
+     * @throws IOException
+     */
+    private static void serializeCallTree(DataOutputStream out,
+                                          MethodGroup[] methods,
+                                          CallTree calls) throws IOException {
+        int size = calls.size();
+        int[] ids = new int[size];
+        int n = 0;
+        for (int node = 1; node < size; node++) {
+            int parent = calls.getParent(node);
+            int index = calls.getMethod(node);
+            if ((parent == CallTree.ROOT || ids[parent] != 0) && index < methods.length
+                    && methods[index] != null && methods[index].hits > 0) {
+                ids[node] = ++n;
+            }
+        }
+        out.writeInt(n);
+        for (int node = 1; node < size; node++) {
+            if (ids[node] == 0) {
+                continue;
+            }
+            out.writeInt(ids[calls.getParent(node)]);
+            out.writeInt(methods[calls.getMethod(node)].globalId);
+            out.writeInt(calls.getHits(node));
+            out.writeLong(calls.getTime(node));
+        }
+    }
+
+    /**
+     * Groups the edges by caller, ignoring the ones whose methods are not going to be
+     * serialized.
+     * 
+     * @param methods methods indexed by method id
+     * @param edges time spent by the methods in their callees
+     * @return slots of the edges of each caller, indexed by method id
+     */
+    private static int[][] groupEdgesByCaller(MethodGroup[] methods, EdgeTable edges) {
+        int[] counts = new int[methods.length];
+        for (int slot = 0; slot < edges.capacity(); slot++) {
+            if (isSerializable(methods, edges, slot)) {
+                counts[edges.getCaller(slot)]++;
+            }
+        }
+        int[][] children = new int[methods.length][];
+        for (int i = 0; i < methods.length; i++) {
+            children[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int slot = 0; slot < edges.capacity(); slot++) {
+            if (isSerializable(methods, edges, slot)) {
+                int caller = edges.getCaller(slot);
+                children[caller][counts[caller]++] = slot;
+            }
+        }
+        return children;
+    }
+
+    private static boolean isSerializable(MethodGroup[] methods, EdgeTable edges, int slot) {
+        if (!edges.isUsed(slot)) {
+            return false;
+        }
+        int caller = edges.getCaller(slot);
+        int callee = edges.getCallee(slot);
+        return caller < methods.length && callee < methods.length && methods[caller] != null
+                && methods[caller].hits > 0 && methods[callee] != null
+                && methods[callee].hits > 0;
     }
 
 }
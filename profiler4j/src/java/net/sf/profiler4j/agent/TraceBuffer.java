@@ -0,0 +1,248 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Ring buffer of method entries and exits of one thread, kept in a memory-mapped file so
+ * that the events survive the JVM and can be read while it runs.
+ * <p>
+ * Each thread writes only to its own buffer, so no locks are taken. The file starts
+ * with a header of {@link #HEADER_SIZE} bytes followed by {@link #RECORD_SIZE}-byte
+ * records: the time of the event (<code>System.nanoTime()</code>) and the global
+ * method id, or its complement for exits. The number of records written so far is
+ * updated after each record; when it exceeds the capacity the oldest records are
+ * overwritten. The names of the methods are appended to the file {@link #METHODS_FILE}
+ * in the same directory by a background thread shortly after they are registered.
+ * 
+ * @see Config#getTraceDir()
+ */
+public final class TraceBuffer {
+
+    /**
+     * Magic number at the start of each trace file.
+     */
+    public static final int MAGIC = 0xbabaca10;
+    public static final int VERSION = 1;
+    public static final String SUFFIX = ".p4t";
+    public static final String METHODS_FILE = "methods.txt";
+
+    // header layout
+    public static final int CAPACITY_OFFSET = 8;
+    public static final int THREAD_ID_OFFSET = 16;
+    /**
+     * Offset of <code>System.currentTimeMillis()</code> and
+     * <code>System.nanoTime()</code> read at the same moment, which convert the times of
+     * the records into dates.
+     */
+    public static final int BASE_MILLIS_OFFSET = 24;
+    public static final int BASE_NANOS_OFFSET = 32;
+    public static final int COUNT_OFFSET = 40;
+    public static final int NAME_OFFSET = 48;
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int HEADER_SIZE = 192;
+    public static final int RECORD_SIZE = 12;
+
+    private static File dir;
+    private static int capacity;
+    private static long baseMillis;
+    private static long baseNanos;
+    private static volatile MethodWriter methodWriter;
+
+    private final MappedByteBuffer buffer;
+    private final int capacityRecords;
+    private int next;
+    private long count;
+
+    /**
+     * Enables tracing for the threads that start profiling after this call.
+     * 
+     * @param dir directory of the trace files, which is created if needed
+     * @param size size of the buffer of each thread in bytes
+     */
+    static synchronized void configure(File dir, int size) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new Profiler4JError("Cannot create trace directory " + dir);
+        }
+        PrintWriter out;
+        try {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(
+                    dir, METHODS_FILE)), "UTF-8"));
+        } catch (IOException e) {
+            throw new Profiler4JError("Cannot write " + METHODS_FILE, e);
+        }
+        if (methodWriter != null) {
+            methodWriter.interrupt();
+        }
+        methodWriter = new MethodWriter(out);
+        methodWriter.start();
+        TraceBuffer.capacity = Math.max(1, (size - HEADER_SIZE) / RECORD_SIZE);
+        TraceBuffer.baseMillis = System.currentTimeMillis();
+        TraceBuffer.baseNanos = System.nanoTime();
+        TraceBuffer.dir = dir;
+        Log.print(0, "Tracing to " + dir + " (" + capacity + " events per thread)");
+    }
+
+    /**
+     * @return <code>true</code> if tracing is enabled
+     */
+    static synchronized boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Records the name of a method, so that readers can resolve its id. The name is
+     * only queued, since this is called with the global lock held; it is written to
+     * {@link #METHODS_FILE} by a background thread.
+     * 
+     * @param globalMethodId global method id
+     * @param name method name
+     */
+    static void defineMethod(int globalMethodId, String name) {
+        MethodWriter w = methodWriter;
+        if (w != null) {
+            w.pending.add(globalMethodId + "\t" + name);
+        }
+    }
+
+    /**
+     * Writes the method names not written yet. Called when the JVM exits, as the
+     * background writer may be stopped before it catches up.
+     */
+    static void flushMethods() {
+        MethodWriter w = methodWriter;
+        if (w != null) {
+            w.writePending();
+        }
+    }
+
+    /**
+     * Creates the buffer of a thread.
+     * 
+     * @param thread thread
+     * @return buffer, or <code>null</code> if tracing is disabled or the file could not
+     *         be mapped
+     */
+    static synchronized TraceBuffer open(Thread thread) {
+        if (dir == null) {
+            return null;
+        }
+        File f = new File(dir, "thread-" + thread.getId() + SUFFIX);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                      HEADER_SIZE + (long) capacity
+                                                              * RECORD_SIZE);
+                return new TraceBuffer(buffer, capacity, thread);
+            } finally {
+                // the mapping stays valid
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.print(0, "Cannot trace thread " + thread.getName() + " in " + f, e);
+            return null;
+        }
+    }
+
+    private TraceBuffer(MappedByteBuffer buffer, int capacity, Thread thread) {
+        this.buffer = buffer;
+        this.capacityRecords = capacity;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putLong(THREAD_ID_OFFSET, thread.getId());
+        buffer.putLong(BASE_MILLIS_OFFSET, baseMillis);
+        buffer.putLong(BASE_NANOS_OFFSET, baseNanos);
+        String name = thread.getName();
+        int n = Math.min(name.length(), MAX_NAME_LENGTH);
+        buffer.putInt(NAME_OFFSET, n);
+        for (int i = 0; i < n; i++) {
+            buffer.putChar(NAME_OFFSET + 4 + 2 * i, name.charAt(i));
+        }
+        buffer.putLong(COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Background thread that appends the queued method names to {@link #METHODS_FILE}.
+     */
+    private static class MethodWriter extends Thread {
+
+        private final BlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+        private final PrintWriter out;
+
+        public MethodWriter(PrintWriter out) {
+            super("PROFILER4J_TRACE_WRITER");
+            this.out = out;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (methodWriter == this) {
+                try {
+                    String line = pending.take();
+                    synchronized (out) {
+                        out.println(line);
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                writePending();
+            }
+            writePending();
+            out.close();
+        }
+
+        /**
+         * Writes the queued names and flushes the file.
+         */
+        void writePending() {
+            synchronized (out) {
+                String line;
+                while ((line = pending.poll()) != null) {
+                    out.println(line);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Appends an event, overwriting the oldest one if the buffer is full.
+     * 
+     * @param globalMethodId global method id for an entry, or its complement for an exit
+     */
+    void add(int globalMethodId) {
+        int pos = HEADER_SIZE + next * RECORD_SIZE;
+        buffer.putLong(pos, System.nanoTime());
+        buffer.putInt(pos + 8, globalMethodId);
+        buffer.putLong(COUNT_OFFSET, ++count);
+        if (++next == capacityRecords) {
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+/**
+ * Derives the transaction key of an invocation of an entry method, for instance the
+ * path of a servlet request or the type of a message. Implementations are named by the
+ * session option <code>-txextractor</code> and used by the entry methods whose rule
+ * has the option <code>-transaction:custom</code>.
+ * <p>
+ * Implementations must have a public no-argument constructor and be thread-safe. They
+ * are called by the application threads, so they should be fast.
+ * 
+ * @see Rule.Option#TRANSACTION
+ */
+public interface TransactionKeyExtractor {
+
+    /**
+     * Gets the transaction key of an invocation.
+     * 
+     * @param methodName fully qualified name of the entry method
+     * @param args arguments of the invocation (primitive values are boxed)
+     * @return transaction key, or <code>null</code> to count the invocation as
+     *         "other"
+     */
+    String getKey(String methodName, Object[] args);
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.agent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the transaction keys of the current session.
+ * <p>
+ * Each distinct key gets a slot, which indexes the per-transaction statistics of the
+ * methods (see {@link ThreadProfiler}). To bound the memory used, only the first
+ * {@link #getMaxKeys()} keys seen in the session get slots of their own. The other keys
+ * share the last slot, called "other".
+ * 
+ * @see Rule.Option#TRANSACTION
+ */
+class Transactions {
+
+    /**
+     * Entry mode of methods that do not start transactions.
+     */
+    public static final int MODE_NONE = -1;
+    /**
+     * Entry mode of methods whose transaction key is their own name.
+     */
+    public static final int MODE_NAME = -2;
+    /**
+     * Entry mode of methods whose transaction key is given by the configured
+     * {@link TransactionKeyExtractor}. Entry modes greater than or equal to zero use the
+     * argument with that index as the key.
+     */
+    public static final int MODE_CUSTOM = -3;
+
+    public static final String OTHER_KEY = "(other)";
+
+    private static final Map<String, Integer> slots =
+        new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] keys = new String[0];
+    private static volatile int maxKeys = 20;
+    private static volatile TransactionKeyExtractor extractor;
+    private static boolean errorReported = false;
+
+    private Transactions() {
+        // static methods only
+    }
+
+    /**
+     * Forgets the keys of the previous session and defines the configuration of the new
+     * one. Must be called while a session is being configured.
+     * 
+     * @param maxKeys_ maximum number of keys with slots of their own
+     * @param extractor_ extractor used by {@link #MODE_CUSTOM}, or <code>null</code>
+     */
+    public static synchronized void configure(int maxKeys_,
+                                              TransactionKeyExtractor extractor_) {
+        slots.clear();
+        keys = new String[0];
+        maxKeys = maxKeys_;
+        extractor = extractor_;
+        errorReported = false;
+    }
+
+    /**
+     * @return maximum number of keys with slots of their own
+     */
+    public static int getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * @return number of slots of the current session, including "other"
+     */
+    public static int getSlotCount() {
+        return maxKeys + 1;
+    }
+
+    /**
+     * @return keys with slots of their own, indexed by slot
+     */
+    public static String[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * Parses the value of the rule option {@link Rule.Option#TRANSACTION}.
+     * 
+     * @param value option value
+     * @return entry mode
+     */
+    public static int parseMode(String value) {
+        if ("name".equals(value)) {
+            return MODE_NAME;
+        }
+        if ("custom".equals(value)) {
+            return MODE_CUSTOM;
+        }
+        if (value.startsWith("arg")) {
+            return Integer.parseInt(value.substring(3));
+        }
+        return MODE_NONE;
+    }
+
+    /**
+     * Gets the slot of the transaction started by an invocation of an entry method.
+     * 
+     * @param mode entry mode of the method
+     * @param methodName name of the method
+     * @param args arguments of the invocation
+     * @return slot
+     */
+    public static int getSlot(int mode, String methodName, Object[] args) {
+        String key;
+        if (mode == MODE_NAME) {
+            key = methodName;
+        } else if (mode == MODE_CUSTOM) {
+            TransactionKeyExtractor e = extractor;
+            if (e == null) {
+                key = methodName;
+            } else {
+                try {
+                    key = e.getKey(methodName, args);
+                } catch (Throwable any) {
+                    reportError(any);
+                    key = null;
+                }
+            }
+        } else if (mode >= 0 && args != null && mode < args.length) {
+            key = String.valueOf(args[mode]);
+        } else {
+            key = null;
+        }
+        return key == null ? maxKeys : getSlot(key);
+    }
+
+    private static int getSlot(String key) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (Transactions.class) {
+            slot = slots.get(key);
+            if (slot != null) {
+                return slot;
+            }
+            int n = keys.length;
+            if (n >= maxKeys) {
+                return maxKeys;
+            }
+            String[] k = new String[n + 1];
+            System.arraycopy(keys, 0, k, 0, n);
+            k[n] = key;
+            keys = k;
+            slots.put(key, n);
+            return n;
+        }
+    }
+
+    private static synchronized void reportError(Throwable error) {
+        if (!errorReported) {
+            errorReported = true;
+            Log.print(0, "Transaction key extractor failed", error);
+        }
+    }
+}
@@ -36,9 +36,36 @@ public class Utils {
         .compile("^\\s*([a-zA-Z0-9_\\(\\)\\*\\.\\$]+)\\s*"
                 + ":\\s*(accept|reject)\\s*(.*)$");
 
+    /**
+     * Thread name pattern used in options (see {@link ThreadProfiler#setThreadStats}).
+     */
+    private static final String THREAD_PATTERN = "[a-zA-Z0-9_$.*#:\\[\\]\\-]+";
+
     private static final OptionParser[] optionHandlers = new OptionParser[]{
             new OptionParser(Option.ACCESS, "access", "private|package|protected|public"),
-            new OptionParser(Option.BEANPROPS, "beanprops", "on|off")};
+            new OptionParser(Option.BEANPROPS, "beanprops", "on|off"),
+            new OptionParser(Option.SLOWCAPTURE, "slowcapture", "off|[1-9][0-9]*"),
+            new OptionParser(Option.TRIGGER, "trigger", "on|off"),
+            new OptionParser(Option.TRANSACTION, "transaction",
+                    "off|name|custom|arg[0-9]"),
+            new OptionParser(Option.CALLTREE, "calltree", "on|off"),
+            new OptionParser(Option.SAMPLING, "sampling", "on|off"),
+            new OptionParser(Option.SAMPLING_INTERVAL, "samplinginterval", "[1-9][0-9]*"),
+            new OptionParser(Option.DEMOTE, "demote", "off|count|remove"),
+            new OptionParser(Option.DEMOTE_TIME, "demotetime", "auto|[1-9][0-9]*"),
+            new OptionParser(Option.DEMOTE_RATE, "demoterate", "[1-9][0-9]*"),
+            new OptionParser(Option.CLOCK, "clock", "wall|cpu|user|both"),
+            new OptionParser(Option.TRANSACTION_KEYS, "txkeys", "[1-9][0-9]{0,2}"),
+            new OptionParser(Option.TRANSACTION_EXTRACTOR, "txextractor",
+                    "none|[a-zA-Z_$][a-zA-Z0-9_$.]*"),
+            new OptionParser(Option.THREAD_STATS, "threadstats", "off|thread|pool"),
+            new OptionParser(Option.THREAD_POOLS, "threadpools", "none|"
+                    + THREAD_PATTERN + "(," + THREAD_PATTERN + ")*"),
+            new OptionParser(Option.THREAD_FILTER, "threadfilter", "all|!?"
+                    + THREAD_PATTERN + "(,!?" + THREAD_PATTERN + ")*"),
+            new OptionParser(Option.TIMING_RATE, "timingrate", "[1-9][0-9]{0,5}"),
+            new OptionParser(Option.TIMING_MODE, "timingmode", "fixed|random"),
+            new OptionParser(Option.ENGINE, "engine", "inline|async")};
 
     public static boolean parseBoolean(String v) {
         if ("yes".equalsIgnoreCase(v) || "on".equalsIgnoreCase(v)
@@ -103,6 +130,12 @@ public class Utils {
             Rule.Action action = ("accept".equals(m.group(2))) ? Action.ACCEPT
                     : Action.REJECT;
             Map<Option, String> options = parseOptions(m.group(3));
+            for (Option option : options.keySet()) {
+                if (option.isSession()) {
+                    throw new Profiler4JError("Session options cannot be used in rules: "
+                            + s);
+                }
+            }
             return new Rule(methodPattern, action, options);
         }
         throw new Profiler4JError("Invalid config line: " + s);
@@ -15,11 +15,11 @@ package net.sf.profiler4j.console;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.List;
 
 import net.sf.profiler4j.agent.Agent;
 import net.sf.profiler4j.agent.Server;
@@ -144,27 +144,54 @@ public class Client {
         assertConnected();
         try {
             sendAndWaitAck(Server.CMD_SNAPSHOT);
-
-            try {
-                FileOutputStream fos = new FileOutputStream(
-                        "C:\\Users\\Hammam\\Desktop\\Snapshot.ser");
-                ObjectOutputStream oos = new ObjectOutputStream(fos);
-                oos.writeObject(Snapshot.read(in).getMethods());
-                oos.close();
-                fos.close();
-                System.out.printf("Serialized HashMap data is saved in hashmap.ser");
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
-            System.out.println("Returning");
             return Snapshot.read(in);
         } catch (Exception e) {
-            e.printStackTrace();
             handleException(e);
         }
         return null;
     }
 
+    /**
+     * Retrieves the call subtrees of the slow invocations captured by the agent.
+     * 
+     * @return invocations, oldest first
+     * @throws ClientException
+     */
+    public synchronized List<SlowInvocation> getSlowInvocations() throws ClientException {
+        assertConnected();
+        try {
+            sendAndWaitAck(Server.CMD_GET_SLOW_INVOCATIONS);
+            return SlowInvocation.readList(in);
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Disables or enables again the probes of the methods that match some patterns,
+     * without redefining any class or resetting the statistics.
+     * 
+     * @param patterns method patterns, as in the rules
+     * @param enabled <code>false</code> to disable the methods
+     * @return number of methods changed
+     * @throws ClientException
+     */
+    public synchronized int setMethodsEnabled(List<String> patterns, boolean enabled)
+        throws ClientException {
+        assertConnected();
+        try {
+            sendAndWaitAck(Server.CMD_SET_METHODS_ENABLED);
+            out.writeBoolean(enabled);
+            Server.writeStringList(out, patterns);
+            out.flush();
+            return in.readInt();
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return 0;
+    }
+
     public void runGc() throws ClientException {
         assertConnected();
         try {
@@ -181,15 +208,55 @@ public class Client {
 
     public synchronized void applyRules(Project p, ProgressCallback callback)
         throws ClientException {
-        StringBuilder defaultRuleOptions = new StringBuilder();
-        defaultRuleOptions.append("-beanprops:" + (p.isBeanprops() ? "on" : "off"));
-        defaultRuleOptions.append(" -access:" + (p.getAccess().toString().toLowerCase()));
         StringBuilder rules = new StringBuilder();
         for (net.sf.profiler4j.console.Rule r : p.getRules()) {
             rules.append(r.getPattern() + " : " + r.getAction().toString().toLowerCase()
                     + "; ");
         }
-        applyRules0(callback, defaultRuleOptions.toString(), rules.toString());
+        applyRules0(callback, makeDefaultRuleOptions(p), rules.toString());
+    }
+
+    /**
+     * Samples the remote JVM for a while and instruments only the hottest methods found.
+     * 
+     * @param p project whose options are used
+     * @param duration sampling time in milliseconds
+     * @param maxMethods maximum number of methods to instrument
+     * @param callback progress of the class redefinition
+     * @return names of the instrumented methods (without parameters)
+     * @throws ClientException
+     */
+    public synchronized List<String> autoRules(Project p,
+                                               int duration,
+                                               int maxMethods,
+                                               ProgressCallback callback)
+        throws ClientException {
+        assertConnected();
+        try {
+            out.writeInt(Server.CMD_AUTO_RULES);
+            out.flush();
+            expectOk();
+            out.writeUTF(makeDefaultRuleOptions(p));
+            out.writeInt(duration);
+            out.writeInt(maxMethods);
+            out.flush();
+            List<String> methods = Server.readStringList(in);
+            readProgress(callback);
+            return methods;
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return null;
+    }
+
+    private String makeDefaultRuleOptions(Project p) {
+        StringBuilder defaultRuleOptions = new StringBuilder();
+        defaultRuleOptions.append("-beanprops:" + (p.isBeanprops() ? "on" : "off"));
+        defaultRuleOptions.append(" -access:" + (p.getAccess().toString().toLowerCase()));
+        if (p.getSessionOptions().trim().length() > 0) {
+            defaultRuleOptions.append(" " + p.getSessionOptions().trim());
+        }
+        return defaultRuleOptions.toString();
     }
 
     /**
@@ -208,21 +275,23 @@ public class Client {
             out.writeUTF(rules);
             out.flush();
             expectOk();
-
-            int n = in.readInt();
-            if (callback != null) {
-                callback.setMaxValue(n);
-            }
-            int i;
-            while ((i = in.readInt()) != -1) {
-                callback.setCurrentValue(i);
-            }
-
+            readProgress(callback);
         } catch (Exception e) {
             handleException(e);
         }
     }
 
+    private void readProgress(ProgressCallback callback) throws IOException {
+        int n = in.readInt();
+        if (callback != null) {
+            callback.setMaxValue(n);
+        }
+        int i;
+        while ((i = in.readInt()) != -1) {
+            callback.setCurrentValue(i);
+        }
+    }
+
     public synchronized ClassInfo[] listLoadedClasses() throws ClientException {
         assertConnected();
         try {
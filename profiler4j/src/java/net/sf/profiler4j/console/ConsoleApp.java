@@ -21,8 +21,10 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -45,6 +47,8 @@ import org.jdom.output.XMLOutputter;
  */
 public class ConsoleApp {
 
+    private static final int AUTO_RULES_MAX_METHODS = 50;
+
     private Client client;
     private Project project;
     private MainFrame mainFrame;
@@ -255,6 +259,9 @@ public class ConsoleApp {
                     .valueOf(rulesEl.getAttributeValue("access")));
                 p.setBeanprops(Boolean.parseBoolean(rulesEl
                     .getAttributeValue("beanProps")));
+                if (el.getChild("SessionOptions") != null) {
+                    p.setSessionOptions(el.getChildText("SessionOptions"));
+                }
 
                 p.getRules().clear();
                 for (Iterator i = rulesEl.getChildren("Rule").iterator(); i.hasNext();) {
@@ -313,6 +320,8 @@ public class ConsoleApp {
 
         rootEl.addContent(new Element("Host").setText(project.getHostname()));
         rootEl.addContent(new Element("Port").setText(String.valueOf(project.getPort())));
+        rootEl.addContent(new Element("SessionOptions").setText(project
+            .getSessionOptions()));
 
         Element rulesEl = new Element("Rules");
         rootEl.addContent(rulesEl);
@@ -374,12 +383,139 @@ public class ConsoleApp {
         }
     }
 
+    /**
+     * Samples the remote JVM and instruments only the hottest methods. The user then
+     * chooses whether the generated rules replace the rules of the current project, are
+     * added before them or are left out of the project.
+     */
+    public void autoRules() {
+        String s = JOptionPane.showInputDialog(mainFrame,
+                                               "Sampling time in seconds:",
+                                               "Generate Rules by Sampling",
+                                               JOptionPane.QUESTION_MESSAGE);
+        if (s == null) {
+            return;
+        }
+        final int duration;
+        try {
+            duration = Integer.parseInt(s.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            error("Invalid number: " + s);
+            return;
+        }
+        final List<String> methods = new ArrayList<String>();
+        LongTask t = new LongTask() {
+            public void executeInBackground() throws Exception {
+                setMessage("Sampling remote JVM...");
+                methods.addAll(client.autoRules(project,
+                                          duration,
+                                          AUTO_RULES_MAX_METHODS,
+                                          new Client.ProgressCallback() {
+                                              private int max;
+                                              public void setMaxValue(int amount) {
+                                                  max = amount;
+                                                  setMessage("Activating profiling rules...");
+                                                  setTaskProgress(0);
+                                              }
+                                              public void setCurrentValue(int value) {
+                                                  setTaskProgress((value * 100) / max);
+                                              }
+                                          }));
+            };
+        };
+        runTask(t);
+        if (t.getError() != null) {
+            return;
+        }
+        List<Rule> generated = new ArrayList<Rule>();
+        StringBuilder sb = new StringBuilder();
+        for (String m : methods) {
+            generated.add(new Rule(m + "(*)", Rule.Action.ACCEPT));
+            sb.append(m + "(*)\n");
+        }
+        sendEvent(AppEventType.RULES_APPLIED);
+        String[] options = new String[]{"Replace", "Add", "Keep"};
+        int choice = JOptionPane.showOptionDialog(mainFrame, "Instrumented "
+                + methods.size() + " hot methods:\n" + sb
+                + "\nReplace the rules of the project, add these rules to them"
+                + " or keep them unchanged?", "Generate Rules by Sampling",
+                                                  JOptionPane.YES_NO_CANCEL_OPTION,
+                                                  JOptionPane.QUESTION_MESSAGE,
+                                                  null,
+                                                  options,
+                                                  options[2]);
+        if (choice == 0) {
+            generated.add(new Rule("*(*)", Rule.Action.REJECT));
+            project.setRules(generated);
+        } else if (choice == 1) {
+            List<Rule> rules = new ArrayList<Rule>();
+            Set<String> patterns = new HashSet<String>();
+            for (Rule r : project.getRules()) {
+                patterns.add(r.getPattern());
+            }
+            for (Rule r : generated) {
+                if (!patterns.contains(r.getPattern())) {
+                    rules.add(r);
+                }
+            }
+            rules.addAll(project.getRules());
+            project.setRules(rules);
+        }
+    }
+
+    /**
+     * Asks for method patterns and disables or enables again the probes of the matching
+     * methods. Takes effect at once, keeping the statistics of the session.
+     */
+    public void toggleMethods() {
+        String s = JOptionPane.showInputDialog(mainFrame,
+                                               "Method patterns (separated by ';'):",
+                                               "Enable/Disable Methods",
+                                               JOptionPane.QUESTION_MESSAGE);
+        if (s == null || s.trim().length() == 0) {
+            return;
+        }
+        final List<String> patterns = new ArrayList<String>();
+        for (String p : s.split("\\s*;\\s*")) {
+            if (p.trim().length() > 0) {
+                patterns.add(p.trim());
+            }
+        }
+        String[] options = new String[]{"Disable", "Enable", "Cancel"};
+        int choice = JOptionPane.showOptionDialog(mainFrame,
+                                                  "Disable or enable the methods?",
+                                                  "Enable/Disable Methods",
+                                                  JOptionPane.YES_NO_CANCEL_OPTION,
+                                                  JOptionPane.QUESTION_MESSAGE,
+                                                  null,
+                                                  options,
+                                                  options[0]);
+        if (choice != 0 && choice != 1) {
+            return;
+        }
+        final boolean enabled = choice == 1;
+        LongTask t = new LongTask() {
+            public void executeInBackground() throws Exception {
+                setMessage((enabled ? "Enabling" : "Disabling") + " methods...");
+                setValue(client.setMethodsEnabled(patterns, enabled));
+            };
+        };
+        runTask(t);
+        if (t.getError() == null) {
+            JOptionPane.showMessageDialog(mainFrame, (enabled ? "Enabled " : "Disabled ")
+                    + t.getValue() + " methods", "Enable/Disable Methods",
+                                          JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
     public void takeSnapshot() {
         LongTask t = new LongTask() {
             public void executeInBackground() throws Exception {
                 setMessage("Retrieving snapshot...");
                 System.out.println("Retrieving snapshot...");
-                setValue(client.getSnapshot());
+                Snapshot s = client.getSnapshot();
+                s.setSlowInvocations(client.getSlowInvocations());
+                setValue(s);
                 System.out.println("in takeSnapshot");
             };
         };
@@ -391,6 +527,16 @@ public class ConsoleApp {
         }
     }
 
+    /**
+     * Makes a snapshot built by the console itself (for instance, from an interval of a
+     * trace) the active one.
+     * 
+     * @param s snapshot
+     */
+    public void viewSnapshot(Snapshot s) {
+        sendEvent(AppEventType.SNAPSHOT, s);
+    }
+
     /**
      * 
      * @return <code>true</code> if the user has cancelled
@@ -22,6 +22,8 @@ import java.awt.FlowLayout;
 import java.awt.Toolkit;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -51,6 +53,7 @@ import javax.swing.tree.TreePath;
 
 import net.sf.profiler4j.agent.Agent;
 import net.sf.profiler4j.agent.SnapshotUtil;
+import net.sf.profiler4j.agent.ThreadProfiler;
 import net.sf.profiler4j.console.TreeBuilder.NodeInfo;
 
 public class MainFrame extends JFrame implements AppEventListener {
@@ -147,6 +150,8 @@ public class MainFrame extends JFrame implements AppEventListener {
     private MemoryPanel memoryMonitorPanel = null;
 
     private JButton applyRulesButton = null;
+    private JButton autoRulesButton = null;
+    private JButton toggleMethodsButton = null;
 
     private JButton editProjectButton = null;
 
@@ -164,6 +169,10 @@ public class MainFrame extends JFrame implements AppEventListener {
 
 	private ThreadPanel threadPanel = null;
 
+    private TimelinePanel timelinePanel = null;
+
+    private Snapshot currentSnapshot = null;
+
     /**
      * This method initializes jJMenuBar
      * 
@@ -417,6 +426,8 @@ public class MainFrame extends JFrame implements AppEventListener {
             remoteCommandPanel.addSeparator(new Dimension(32, 32));
             remoteCommandPanel.add(getConnectButton(), null);
             remoteCommandPanel.add(getApplyRulesButton());
+            remoteCommandPanel.add(getAutoRulesButton());
+            remoteCommandPanel.add(getToggleMethodsButton());
             remoteCommandPanel.add(getSnapshotButton(), null);
             remoteCommandPanel.add(getResetButton(), null);
             remoteCommandPanel.add(getRunGcButton(), null);
@@ -496,6 +507,7 @@ public class MainFrame extends JFrame implements AppEventListener {
             tabbedPane.addTab(" Memory ", null, getMemoryMonitorPanel(), null);
             tabbedPane.addTab(" Class List ", null, getClassListPanel(), null);
             tabbedPane.addTab(" Threads ", null, getThreadPanel(), null);
+            tabbedPane.addTab(" Timeline ", null, getTimelinePanel(), null);
             tabbedPane.addChangeListener(new javax.swing.event.ChangeListener() {
                 public void stateChanged(javax.swing.event.ChangeEvent e) {
                     if (app.getClient().isConnected()
@@ -664,26 +676,85 @@ public class MainFrame extends JFrame implements AppEventListener {
         String dir = lastDir;
         JFileChooser fc = new JFileChooser(dir);
         fc.setFileFilter(fileFilter);
+        // several snapshots of the flight recorder are combined into one
+        fc.setMultiSelectionEnabled(true);
         int returnVal = fc.showOpenDialog(MainFrame.this);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            File file = fc.getSelectedFile();
-            lastDir = file.getParent();
+            File[] files = fc.getSelectedFiles();
+            if (files.length == 0) {
+                return;
+            }
+            Arrays.sort(files);
+            lastDir = files[0].getParent();
             try {
-                viewSnapshot(Snapshot.load(file));
+                if (files.length == 1) {
+                    viewSnapshot(Snapshot.load(files[0]));
+                } else {
+                    List<Snapshot> snapshots = new ArrayList<Snapshot>();
+                    for (File file : files) {
+                        snapshots.add(Snapshot.load(file));
+                    }
+                    viewSnapshot(Snapshot.merge(snapshots));
+                }
             } catch (Exception e) {
-                e.printStackTrace();
+                app.error("Could not open snapshot: " + e.getMessage(), e);
             }
         }
     }
 
     private void viewDetail(NodeInfo info) {
         StringBuilder out = new StringBuilder();
-        if (info != null) {
+        if (info != null && info.getMethodInfo() != null) {
             Snapshot.Method g = info.getMethodInfo();
             out.append(String.format("Method: %s\n", g.getName()));
             out.append(String.format("Hits  : %d\n", g.getHits()));
             out.append(String.format("Total : %.1fms\n", g.getNetTime()));
+            if (g.isCompensated()) {
+                out.append(String.format("        %.1fms without probe overhead\n", g
+                    .getCompensatedNetTime()));
+            }
             out.append(String.format("Local : %.1fms\n", g.getSelfTime()));
+            if (g.getCpuTime() >= 0) {
+                out.append(String.format("CPU   : %.1fms\n", g.getCpuTime()));
+            }
+            if (g.getTimedHits() < g.getHits()) {
+                out.append(String.format("Timed : %d of %d hits, times extrapolated"
+                        + " (+/-%.0f%%)\n", g.getTimedHits(), g.getHits(), g
+                    .getTimingError() * 100));
+            }
+            if (g.hasLatencies()) {
+                out.append(String.format("p50   : %.3fms\n", g.getPercentile(0.5)));
+                out.append(String.format("p90   : %.3fms\n", g.getPercentile(0.9)));
+                out.append(String.format("p99   : %.3fms\n", g.getPercentile(0.99)));
+                out.append(String.format("Max   : %.3fms\n", g.getMaxTime()));
+            }
+            if (currentSnapshot != null && currentSnapshot.getTransactions() != null) {
+                for (Snapshot.Breakdown tx : currentSnapshot.getTransactions()) {
+                    Snapshot.BreakdownStats s = tx.getMethods().get(g);
+                    if (s != null) {
+                        out.append(String.format("Tx    : %s: %d hits, %.1fms total,"
+                                + " %.1fms local\n", tx.getKey(), s.getHits(), s
+                            .getNetTime(), s.getSelfTime()));
+                    }
+                }
+            }
+            if (currentSnapshot != null && currentSnapshot.getThreadGroups() != null) {
+                for (Snapshot.Breakdown tg : currentSnapshot.getThreadGroups()) {
+                    Snapshot.BreakdownStats s = tg.getMethods().get(g);
+                    if (s != null) {
+                        out.append(String.format("Thread: %s: %d hits, %.1fms total,"
+                                + " %.1fms local\n", tg.getKey(), s.getHits(), s
+                            .getNetTime(), s.getSelfTime()));
+                    }
+                }
+            }
+            if (g.getProbeMode() == ThreadProfiler.PROBE_COUNT_ONLY) {
+                out.append("Probe : demoted (count only)\n");
+            } else if (g.getProbeMode() == ThreadProfiler.PROBE_REMOVED) {
+                out.append("Probe : demoted (removed)\n");
+            } else if (g.getProbeMode() == ThreadProfiler.PROBE_DISABLED) {
+                out.append("Probe : disabled\n");
+            }
         }
         detailTextArea.setText(out.toString());
         detailTextArea.setCaretPosition(0);
@@ -696,6 +767,8 @@ public class MainFrame extends JFrame implements AppEventListener {
             snapshotButton.setEnabled(true);
             resetButton.setEnabled(true);
             applyRulesButton.setEnabled(true);
+            autoRulesButton.setEnabled(true);
+            toggleMethodsButton.setEnabled(true);
             connectButton.setToolTipText("Disconnect from remote JVM");
             connectButton.setIcon(new ImageIcon(getClass()
                 .getResource("/net/sf/profiler4j/console/images/disconnect.png")));
@@ -711,6 +784,8 @@ public class MainFrame extends JFrame implements AppEventListener {
             resetButton.setEnabled(false);
             runGcButton.setEnabled(false);
             applyRulesButton.setEnabled(false);
+            autoRulesButton.setEnabled(false);
+            toggleMethodsButton.setEnabled(false);
             DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
             DefaultMutableTreeNode root = (DefaultMutableTreeNode) model.getRoot();
             root.removeAllChildren();
@@ -724,6 +799,7 @@ public class MainFrame extends JFrame implements AppEventListener {
     }
 
     private void viewSnapshot(Snapshot sn) {
+        currentSnapshot = sn;
         TreeBuilder builder = new TreeBuilder(sn);
         DefaultMutableTreeNode root = builder.buildTree();
         DefaultTreeModel model = new DefaultTreeModel(root);
@@ -732,6 +808,28 @@ public class MainFrame extends JFrame implements AppEventListener {
         tree.setCellRenderer(new MethodRenderer());
         callGraphPanel.setSnapshot(sn);
         callGraphPanel.applyNCut(ncutSlider.getValue());
+        StringBuilder notes = new StringBuilder();
+        if (sn.getOverflowCalls() > 0) {
+            notes.append(String.format("Warning: %d invocations were not recorded"
+                    + "\nbecause their call stacks were too deep\n", sn.getOverflowCalls()));
+        }
+        if (sn.getInPlaceThreads() > 0) {
+            notes.append(String.format("Warning: %d threads were read while running;"
+                    + "\ntheir figures may be slightly inconsistent\n", sn
+                .getInPlaceThreads()));
+        }
+        if (sn.getTimingRate() > 1) {
+            notes.append(String.format("Times extrapolated from one in %d invocations\n",
+                                       sn.getTimingRate()));
+        }
+        if (sn.getClock() == ThreadProfiler.CLOCK_CPU) {
+            notes.append("Times are thread CPU times\n");
+        } else if (sn.getClock() == ThreadProfiler.CLOCK_USER) {
+            notes.append("Times are thread user CPU times\n");
+        }
+        if (notes.length() > 0) {
+            detailTextArea.setText(notes.toString());
+        }
     }
 
     /**
@@ -756,6 +854,52 @@ public class MainFrame extends JFrame implements AppEventListener {
         return applyRulesButton;
     }
 
+    /**
+     * This method initializes autoRulesButton
+     * 
+     * @return javax.swing.JButton
+     */
+    private JButton getAutoRulesButton() {
+        if (autoRulesButton == null) {
+            autoRulesButton = new JButton();
+            autoRulesButton.setEnabled(false);
+            autoRulesButton.setToolTipText("Generate rules for the hottest methods by "
+                    + "sampling");
+            autoRulesButton.setPreferredSize(new java.awt.Dimension(32, 32));
+            autoRulesButton.setIcon(new ImageIcon(getClass()
+                .getResource("/net/sf/profiler4j/console/images/wand.png")));
+            autoRulesButton.addActionListener(new java.awt.event.ActionListener() {
+                public void actionPerformed(java.awt.event.ActionEvent e) {
+                    app.autoRules();
+                }
+            });
+        }
+        return autoRulesButton;
+    }
+
+    /**
+     * This method initializes toggleMethodsButton
+     * 
+     * @return javax.swing.JButton
+     */
+    private JButton getToggleMethodsButton() {
+        if (toggleMethodsButton == null) {
+            toggleMethodsButton = new JButton();
+            toggleMethodsButton.setEnabled(false);
+            toggleMethodsButton.setToolTipText("Disable or enable methods without "
+                    + "redefining classes");
+            toggleMethodsButton.setPreferredSize(new java.awt.Dimension(32, 32));
+            toggleMethodsButton.setIcon(new ImageIcon(getClass()
+                .getResource("/net/sf/profiler4j/console/images/lightbulb.png")));
+            toggleMethodsButton.addActionListener(new java.awt.event.ActionListener() {
+                public void actionPerformed(java.awt.event.ActionEvent e) {
+                    app.toggleMethods();
+                }
+            });
+        }
+        return toggleMethodsButton;
+    }
+
     /**
      * This method initializes editProjectButton
      * 
@@ -923,4 +1067,16 @@ public class MainFrame extends JFrame implements AppEventListener {
 	    return threadPanel;
 	}
 
+    /**
+     * This method initializes timelinePanel
+     * 
+     * @return net.sf.profiler4j.console.TimelinePanel
+     */
+    private TimelinePanel getTimelinePanel() {
+        if (timelinePanel == null) {
+            timelinePanel = new TimelinePanel(app);
+        }
+        return timelinePanel;
+    }
+
 } // @jve:decl-index=0:visual-constraint="10,10"
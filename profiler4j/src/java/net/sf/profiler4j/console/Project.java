@@ -32,6 +32,7 @@ public class Project {
     private int port = 7890;
     private boolean beanprops = true;
     private Rule.AccessOption access = Rule.AccessOption.PRIVATE;
+    private String sessionOptions = "";
 
     private List<Rule> rules = new ArrayList<Rule>();
 
@@ -77,6 +78,17 @@ public class Project {
     public void setBeanprops(boolean beanprops) {
         this.beanprops = beanprops;
     }
+    /**
+     * @return agent options that apply to the whole session (e.g.
+     *         <code>-calltree:on</code>)
+     */
+    public String getSessionOptions() {
+        return this.sessionOptions;
+    }
+    public void setSessionOptions(String sessionOptions) {
+        changed = true;
+        this.sessionOptions = sessionOptions;
+    }
     public List<Rule> getRules() {
         return this.rules;
     }
@@ -197,6 +197,8 @@ public class ProjectDialog extends JDialog {
     private JTextField hostTextField = null;
     private JTextField portTextField = null;
     private JLabel jLabel2 = null;
+    private JLabel jLabel3 = null;
+    private JTextField sessionOptionsTextField = null;
 
     /**
      * This method initializes rulesTable
@@ -493,6 +495,9 @@ public class ProjectDialog extends JDialog {
             jLabel2 = new JLabel();
             jLabel2.setBounds(new java.awt.Rectangle(16, 64, 49, 17));
             jLabel2.setText("Port");
+            jLabel3 = new JLabel();
+            jLabel3.setBounds(new java.awt.Rectangle(128, 64, 89, 17));
+            jLabel3.setText("Session options");
             jLabel1 = new JLabel();
             jLabel1.setText("Host");
             jLabel1.setBounds(new java.awt.Rectangle(16, 32, 49, 17));
@@ -511,6 +516,8 @@ public class ProjectDialog extends JDialog {
             jPanel4.add(getHostTextField(), null);
             jPanel4.add(getPortTextField(), null);
             jPanel4.add(jLabel2, null);
+            jPanel4.add(jLabel3, null);
+            jPanel4.add(getSessionOptionsTextField(), null);
         }
         return jPanel4;
     }
@@ -543,12 +550,28 @@ public class ProjectDialog extends JDialog {
         return portTextField;
     }
 
+    /**
+     * This method initializes sessionOptionsTextField
+     * 
+     * @return javax.swing.JTextField
+     */
+    private JTextField getSessionOptionsTextField() {
+        if (sessionOptionsTextField == null) {
+            sessionOptionsTextField = new JTextField();
+            sessionOptionsTextField.setBounds(new java.awt.Rectangle(224, 64, 137, 19));
+            sessionOptionsTextField.setToolTipText("Agent options for the whole session, "
+                    + "e.g. -calltree:on");
+        }
+        return sessionOptionsTextField;
+    }
+
     public boolean edit(Project p) {
 
         beanpropsCheckBox.setSelected(p.isBeanprops());
         accessComboBox.setSelectedItem(p.getAccess());
         hostTextField.setText(p.getHostname());
         portTextField.setText(String.valueOf(p.getPort()));
+        sessionOptionsTextField.setText(p.getSessionOptions());
 
         if (app.getClient().isConnected()) {
             hostTextField.setEnabled(false);
@@ -564,6 +587,7 @@ public class ProjectDialog extends JDialog {
         if (edited) {
             p.setHostname(hostTextField.getText());
             p.setPort(Integer.parseInt(portTextField.getText()));
+            p.setSessionOptions(sessionOptionsTextField.getText());
             p.setBeanprops(beanpropsCheckBox.isSelected());
             p.setAccess((Rule.AccessOption) accessComboBox.getSelectedItem());
             p.getRules().clear();
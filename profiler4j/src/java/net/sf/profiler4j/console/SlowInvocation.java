@@ -0,0 +1,144 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.console;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.profiler4j.agent.Server;
+
+/**
+ * Call subtree of an invocation that took longer than the capture threshold of its
+ * method, as captured by the agent.
+ * 
+ * @see Server#CMD_GET_SLOW_INVOCATIONS
+ */
+public class SlowInvocation implements Serializable {
+
+    private String threadName;
+    private long time;
+    private double threshold;
+    private int skippedCalls;
+    private Node root;
+
+    public String getThreadName() {
+        return this.threadName;
+    }
+
+    /**
+     * @return time when the invocation ended, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return capture threshold of the method in milliseconds
+     */
+    public double getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * @return number of invocations missing from the subtree because it was too large
+     */
+    public int getSkippedCalls() {
+        return this.skippedCalls;
+    }
+
+    public Node getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Reads the invocations written by the agent.
+     * 
+     * @param in input to read
+     * @return invocations, oldest first
+     * @throws IOException
+     */
+    public static List<SlowInvocation> readList(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<SlowInvocation> list = new ArrayList<SlowInvocation>(count);
+        for (int i = 0; i < count; i++) {
+            SlowInvocation si = new SlowInvocation();
+            si.threadName = in.readUTF();
+            si.time = in.readLong();
+            si.threshold = in.readLong() / 1e6;
+            si.skippedCalls = in.readInt();
+            int n = in.readInt();
+            Node[] nodes = new Node[n];
+            for (int j = 0; j < n; j++) {
+                int parent = in.readInt();
+                String name = in.readUTF();
+                double start = in.readLong() / 1e6;
+                double netTime = in.readLong() / 1e6;
+                nodes[j] = new Node(name, start, netTime);
+                if (parent >= 0 && parent < j) {
+                    nodes[parent].children.add(nodes[j]);
+                }
+            }
+            if (n > 0) {
+                si.root = nodes[0];
+                list.add(si);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Invocation of a method within the captured subtree.
+     */
+    public static class Node implements Serializable {
+
+        private String methodName;
+        private double start;
+        private double netTime;
+        private List<Node> children = new ArrayList<Node>();
+
+        Node(String methodName, double start, double netTime) {
+            this.methodName = methodName;
+            this.start = start;
+            this.netTime = netTime;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        /**
+         * @return start time in milliseconds, relative to the start of the root
+         */
+        public double getStart() {
+            return this.start;
+        }
+
+        /**
+         * @return net time in milliseconds
+         */
+        public double getNetTime() {
+            return this.netTime;
+        }
+
+        /**
+         * @return invocations made by this one, in the order they were made
+         */
+        public List<Node> getChildren() {
+            return this.children;
+        }
+    }
+}
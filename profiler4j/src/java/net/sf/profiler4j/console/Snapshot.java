@@ -21,11 +21,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+import net.sf.profiler4j.agent.LatencyHistogram;
 import net.sf.profiler4j.agent.ThreadProfiler;
 
 /**
@@ -50,6 +53,213 @@ public class Snapshot implements Serializable{
         }
     }
 
+    /**
+     * Combines the snapshots written by the agent for consecutive periods (see the
+     * agent option <code>recorder</code>) into a snapshot of the whole interval.
+     * Methods are matched by name, so the snapshots may come from different sessions.
+     * The calling context trees are not combined.
+     * <p>
+     * Only delta snapshots can be combined, as the others hold the statistics since the
+     * last reset, which would be counted several times.
+     * 
+     * @param snapshots snapshots to combine, oldest first
+     * @return combined snapshot
+     * @throws IOException if a snapshot is not a delta snapshot
+     */
+    public static Snapshot merge(List<Snapshot> snapshots) throws IOException {
+        for (Snapshot s : snapshots) {
+            if (!s.delta) {
+                throw new IOException("Only snapshots recorded in delta mode can be"
+                        + " combined");
+            }
+        }
+        Snapshot result = new Snapshot();
+        result.delta = true;
+        result.methods = new LinkedHashMap<Integer, Method>();
+        Map<String, Method> byName = new HashMap<String, Method>();
+        Map<String, Breakdown> transactions = new LinkedHashMap<String, Breakdown>();
+        Map<String, Breakdown> threadGroups = new LinkedHashMap<String, Breakdown>();
+        boolean compensated = true;
+        for (Snapshot s : snapshots) {
+            compensated &= s.probeCost > 0;
+        }
+        for (Snapshot s : snapshots) {
+            result.systemProperties = s.systemProperties;
+            result.time = s.time;
+            result.clock = s.clock;
+            result.overflowCalls += s.overflowCalls;
+            result.inPlaceThreads += s.inPlaceThreads;
+            result.timingRate = Math.max(result.timingRate, s.timingRate);
+            if (s.threadMode != ThreadProfiler.THREADS_OFF) {
+                result.threadMode = s.threadMode;
+            }
+            if (compensated) {
+                result.probeCost = s.probeCost;
+                result.innerProbeCost = s.innerProbeCost;
+            }
+            for (Method m : s.methods.values()) {
+                Method rm = mergedMethod(result, byName, m.name);
+                rm.hits += m.hits;
+                rm.netTime += m.netTime;
+                rm.selfTime += m.selfTime;
+                rm.probeMode = m.probeMode;
+                if (rm.cpuTime >= 0) {
+                    rm.cpuTime = m.cpuTime < 0 ? -1 : rm.cpuTime + m.cpuTime;
+                }
+                rm.timedHits += m.getTimedHits();
+                rm.maxTime = Math.max(rm.maxTime, m.maxTime);
+                if (m.histogram != null) {
+                    if (rm.histogram == null) {
+                        rm.histogram = new long[LatencyHistogram.BUCKETS];
+                    }
+                    LatencyHistogram.merge(m.histogram, rm.histogram);
+                }
+                mergeChildren(result, byName, m.childrenTimes, rm.childrenTimes);
+                if (compensated) {
+                    rm.compensatedNetTime += m.compensatedNetTime;
+                    mergeChildren(result, byName, m.compensatedChildrenTimes,
+                                  rm.compensatedChildrenTimes);
+                }
+            }
+            mergeBreakdowns(result, byName, s.transactions, transactions);
+            mergeBreakdowns(result, byName, s.threadGroups, threadGroups);
+        }
+        for (Method m : result.methods.values()) {
+            if (m.timedHits == m.hits) {
+                m.timedHits = -1;
+            }
+            if (!compensated) {
+                m.compensatedChildrenTimes = null;
+            }
+        }
+        if (!transactions.isEmpty()) {
+            result.transactions = new ArrayList<Breakdown>(transactions.values());
+        }
+        if (!threadGroups.isEmpty()) {
+            result.threadGroups = new ArrayList<Breakdown>(threadGroups.values());
+        }
+        return result;
+    }
+
+    private static Method mergedMethod(Snapshot result, Map<String, Method> byName,
+                                       String name) {
+        Method rm = byName.get(name);
+        if (rm == null) {
+            rm = new Method();
+            rm.id = result.methods.size();
+            rm.name = name;
+            rm.timedHits = 0;
+            rm.cpuTime = 0;
+            rm.childrenTimes = new HashMap<Method, Double>();
+            rm.compensatedChildrenTimes = new HashMap<Method, Double>();
+            byName.put(name, rm);
+            result.methods.put(rm.id, rm);
+        }
+        return rm;
+    }
+
+    private static void mergeChildren(Snapshot result, Map<String, Method> byName,
+                                      Map<Method, Double> source,
+                                      Map<Method, Double> target) {
+        for (Map.Entry<Method, Double> e : source.entrySet()) {
+            Method child = mergedMethod(result, byName, e.getKey().name);
+            Double time = target.get(child);
+            target.put(child, (time == null ? 0 : time) + e.getValue());
+        }
+    }
+
+    private static void mergeBreakdowns(Snapshot result, Map<String, Method> byName,
+                                        List<Breakdown> source,
+                                        Map<String, Breakdown> target) {
+        if (source == null) {
+            return;
+        }
+        for (Breakdown b : source) {
+            Breakdown rb = target.get(b.key);
+            if (rb == null) {
+                rb = new Breakdown(b.key);
+                target.put(b.key, rb);
+            }
+            for (Map.Entry<Method, BreakdownStats> e : b.methods.entrySet()) {
+                Method m = mergedMethod(result, byName, e.getKey().name);
+                BreakdownStats rs = rb.methods.get(m);
+                if (rs == null) {
+                    rs = new BreakdownStats();
+                    rb.methods.put(m, rs);
+                }
+                rs.hits += e.getValue().hits;
+                rs.netTime += e.getValue().netTime;
+                rs.selfTime += e.getValue().selfTime;
+            }
+        }
+    }
+
+    /**
+     * Aggregates the invocations of a trace that started and ended within an interval,
+     * with the statistics broken down by thread. As in the agent, the net time and the
+     * hits of recursive invocations are counted by the outermost one only.
+     * 
+     * @param trace trace
+     * @param from start of the interval in milliseconds since the epoch
+     * @param to end of the interval in milliseconds since the epoch
+     * @return snapshot of the interval
+     */
+    public static Snapshot fromTrace(Trace trace, double from, double to) {
+        Snapshot result = new Snapshot();
+        result.methods = new LinkedHashMap<Integer, Method>();
+        result.time = (long) to;
+        result.threadMode = ThreadProfiler.THREADS_EACH;
+        result.threadGroups = new ArrayList<Breakdown>();
+        Map<String, Method> byName = new HashMap<String, Method>();
+        for (Trace.ThreadTrace tt : trace.getThreads()) {
+            Breakdown b = new Breakdown(tt.getName());
+            for (Trace.Span s : tt.getSpans(from, to)) {
+                if (!s.isComplete() || s.getStart() < from || s.getEnd() > to) {
+                    continue;
+                }
+                Method m = mergedMethod(result, byName, s.getMethodName());
+                BreakdownStats bs = b.methods.get(m);
+                if (bs == null) {
+                    bs = new BreakdownStats();
+                    b.methods.put(m, bs);
+                }
+                long netTime = s.end - s.start;
+                double selfTime = (netTime - s.childTime) / 1e6;
+                m.selfTime += selfTime;
+                bs.selfTime += selfTime;
+                if (s.isRecursive()) {
+                    continue;
+                }
+                m.hits++;
+                m.netTime += netTime / 1e6;
+                if (m.histogram == null) {
+                    m.histogram = new long[LatencyHistogram.BUCKETS];
+                }
+                m.histogram[LatencyHistogram.bucket(netTime)]++;
+                m.maxTime = Math.max(m.maxTime, netTime);
+                bs.hits++;
+                bs.netTime += netTime / 1e6;
+                Trace.Span parent = s.getParent();
+                if (parent != null && parent.isComplete() && parent.getStart() >= from
+                        && parent.getEnd() <= to) {
+                    Method caller = mergedMethod(result, byName, parent.getMethodName());
+                    Double time = caller.childrenTimes.get(m);
+                    caller.childrenTimes.put(m, (time == null ? 0 : time) + netTime
+                            / 1e6);
+                }
+            }
+            if (!b.methods.isEmpty()) {
+                result.threadGroups.add(b);
+            }
+        }
+        for (Method m : result.methods.values()) {
+            m.timedHits = -1;
+            m.cpuTime = -1;
+            m.compensatedChildrenTimes = null;
+        }
+        return result;
+    }
+
     public static Snapshot read(InputStream is) throws IOException {
         DataInputStream dis = new DataInputStream(is);
         Snapshot snapshot = new Snapshot();
@@ -88,15 +298,152 @@ public class Snapshot implements Serializable{
                 m.childrenTimes.put(snapshot.methods.get(m.tmp_childrenIds[i]),
                                     m.tmp_childrenTimes[i] / 1e6);
             }
+        }
+        int section;
+        while ((section = dis.readInt()) != ThreadProfiler.SNAPSHOT_END) {
+            if (section == ThreadProfiler.SNAPSHOT_TYPE_CALLTREE) {
+                readCallTree(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_DEMOTED) {
+                readDemotions(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_COMPENSATED) {
+                readCompensatedTimes(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_OVERFLOW) {
+                snapshot.overflowCalls = dis.readLong();
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_CLOCK) {
+                readClock(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_HISTOGRAM) {
+                readHistograms(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_TRANSACTIONS) {
+                snapshot.transactions = readBreakdowns(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_TIMING) {
+                snapshot.timingRate = dis.readInt();
+                for (Method m : snapshot.methods.values()) {
+                    m.timedHits = dis.readLong();
+                }
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_THREADS) {
+                snapshot.threadMode = dis.readInt();
+                snapshot.threadGroups = readBreakdowns(dis, snapshot);
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_DELTA) {
+                snapshot.delta = true;
+            } else if (section == ThreadProfiler.SNAPSHOT_TYPE_IN_PLACE) {
+                snapshot.inPlaceThreads = dis.readInt();
+            } else {
+                throw new IOException("Unknown snapshot section " + section);
+            }
+        }
+        for (Method m : snapshot.methods.values()) {
             m.tmp_childrenIds = null;
             m.tmp_childrenTimes = null;
         }
         return snapshot;
     }
 
+    private static void readCallTree(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        int n = dis.readInt();
+        CallTreeNode[] nodes = new CallTreeNode[n + 1];
+        nodes[0] = new CallTreeNode(null, null, 0, 0);
+        for (int i = 1; i <= n; i++) {
+            CallTreeNode parent = nodes[dis.readInt()];
+            Method method = snapshot.methods.get(dis.readInt());
+            int hits = dis.readInt();
+            double time = dis.readLong() / 1e6;
+            nodes[i] = new CallTreeNode(parent, method, hits, time);
+            parent.children.add(nodes[i]);
+        }
+        snapshot.callTree = nodes[0];
+    }
+
+    private static void readCompensatedTimes(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        snapshot.probeCost = dis.readDouble();
+        snapshot.innerProbeCost = dis.readDouble();
+        for (Method m : snapshot.methods.values()) {
+            m.compensatedNetTime = dis.readLong() / 1e6;
+            int[] ids = m.tmp_childrenIds;
+            m.compensatedChildrenTimes = new HashMap<Method, Double>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                m.compensatedChildrenTimes.put(snapshot.methods.get(ids[i]),
+                                               dis.readLong() / 1e6);
+            }
+        }
+    }
+
+    private static void readClock(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        snapshot.clock = dis.readInt();
+        if (snapshot.clock == ThreadProfiler.CLOCK_BOTH) {
+            for (Method m : snapshot.methods.values()) {
+                m.cpuTime = dis.readLong() / 1e6;
+            }
+        }
+    }
+
+    private static void readHistograms(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        for (Method m : snapshot.methods.values()) {
+            m.maxTime = dis.readLong();
+            int n = dis.readInt();
+            m.histogram = new long[LatencyHistogram.BUCKETS];
+            for (int i = 0; i < n; i++) {
+                int bucket = dis.readInt();
+                long count = dis.readLong();
+                if (bucket >= 0 && bucket < LatencyHistogram.BUCKETS) {
+                    m.histogram[bucket] = count;
+                }
+            }
+        }
+    }
+
+    private static List<Breakdown> readBreakdowns(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        int n = dis.readInt();
+        List<Breakdown> list = new ArrayList<Breakdown>(n);
+        for (int i = 0; i < n; i++) {
+            Breakdown b = new Breakdown(dis.readUTF());
+            int count = dis.readInt();
+            for (int j = 0; j < count; j++) {
+                Method method = snapshot.methods.get(dis.readInt());
+                BreakdownStats stats = new BreakdownStats();
+                stats.hits = dis.readLong();
+                stats.netTime = dis.readLong() / 1e6;
+                stats.selfTime = dis.readLong() / 1e6;
+                if (method != null) {
+                    b.methods.put(method, stats);
+                }
+            }
+            list.add(b);
+        }
+        return list;
+    }
+
+    private static void readDemotions(DataInputStream dis, Snapshot snapshot)
+        throws IOException {
+        int n = dis.readInt();
+        for (int i = 0; i < n; i++) {
+            Method method = snapshot.methods.get(dis.readInt());
+            int mode = dis.readInt();
+            if (method != null) {
+                method.probeMode = mode;
+            }
+        }
+    }
+
     private Properties systemProperties;
     private Map<Integer, Method> methods;
     private long time;
+    private CallTreeNode callTree;
+    private List<SlowInvocation> slowInvocations;
+    private List<Breakdown> transactions;
+    private List<Breakdown> threadGroups;
+    private int threadMode = ThreadProfiler.THREADS_OFF;
+    private int timingRate = 1;
+    private double probeCost;
+    private double innerProbeCost;
+    private long overflowCalls;
+    private int inPlaceThreads;
+    private int clock = ThreadProfiler.CLOCK_WALL;
+    private boolean delta;
 
     /**
      * @return Returns the methods.
@@ -122,6 +469,209 @@ public class Snapshot implements Serializable{
         return this.time;
     }
 
+    /**
+     * @return statistics of the methods in each transaction, "other" last, or
+     *         <code>null</code> if no transaction was recorded
+     */
+    public List<Breakdown> getTransactions() {
+        return this.transactions;
+    }
+
+    /**
+     * @return statistics of the methods in each thread or pool of threads, sorted by
+     *         name, or <code>null</code> if the statistics were not broken down by
+     *         thread
+     */
+    public List<Breakdown> getThreadGroups() {
+        return this.threadGroups;
+    }
+
+    /**
+     * @return one in how many invocations of each method were timed; the times of the
+     *         others are extrapolated
+     */
+    public int getTimingRate() {
+        return this.timingRate;
+    }
+
+    /**
+     * @return how the statistics were broken down by thread:
+     *         {@link ThreadProfiler#THREADS_OFF}, {@link ThreadProfiler#THREADS_EACH}
+     *         or {@link ThreadProfiler#THREADS_POOL}
+     */
+    public int getThreadMode() {
+        return this.threadMode;
+    }
+
+    /**
+     * @return <code>true</code> if the snapshot holds only the invocations of one period
+     *         of the flight recorder, rather than all since the last reset
+     */
+    public boolean isDelta() {
+        return this.delta;
+    }
+
+    /**
+     * @return slow invocations captured by the agent, oldest first, or
+     *         <code>null</code> if not retrieved
+     */
+    public List<SlowInvocation> getSlowInvocations() {
+        return this.slowInvocations;
+    }
+
+    /**
+     * @param slowInvocations slow invocations captured by the agent until this snapshot
+     */
+    public void setSlowInvocations(List<SlowInvocation> slowInvocations) {
+        this.slowInvocations = slowInvocations;
+    }
+
+    /**
+     * Gets the calling context tree, if it was recorded by the agent.
+     * 
+     * @return virtual root node (without method) or <code>null</code>
+     */
+    public CallTreeNode getCallTree() {
+        return this.callTree;
+    }
+
+    /**
+     * @return estimated time in nanoseconds that the probes of one call add to the net
+     *         time of the callers, or <code>0</code> if the times are not compensated
+     */
+    public double getProbeCost() {
+        return this.probeCost;
+    }
+
+    /**
+     * @return number of invocations not recorded because the call stack of their
+     *         threads was too deep
+     */
+    public long getOverflowCalls() {
+        return this.overflowCalls;
+    }
+
+    /**
+     * @return number of threads whose statistics were read while they were running,
+     *         which may make them slightly inconsistent
+     */
+    public int getInPlaceThreads() {
+        return this.inPlaceThreads;
+    }
+
+    /**
+     * @return clock used to measure the times: {@link ThreadProfiler#CLOCK_WALL},
+     *         {@link ThreadProfiler#CLOCK_CPU}, {@link ThreadProfiler#CLOCK_USER} or
+     *         {@link ThreadProfiler#CLOCK_BOTH}
+     */
+    public int getClock() {
+        return this.clock;
+    }
+
+    /**
+     * @return estimated part of the probe cost in nanoseconds that is included in the
+     *         net time of the called method itself
+     */
+    public double getInnerProbeCost() {
+        return this.innerProbeCost;
+    }
+
+    /**
+     * Statistics of the methods called within a subset of the invocations, such as the
+     * transactions with the same key or the threads of a pool.
+     */
+    public static class Breakdown implements Serializable {
+
+        private String key;
+        private Map<Method, BreakdownStats> methods =
+            new HashMap<Method, BreakdownStats>();
+
+        Breakdown(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return statistics of each method called within the subset
+         */
+        public Map<Method, BreakdownStats> getMethods() {
+            return this.methods;
+        }
+    }
+
+    /**
+     * Statistics of a method within a subset of the invocations.
+     */
+    public static class BreakdownStats implements Serializable {
+
+        private long hits;
+        private double netTime;
+        private double selfTime;
+
+        public long getHits() {
+            return this.hits;
+        }
+
+        /**
+         * @return net time in milliseconds
+         */
+        public double getNetTime() {
+            return this.netTime;
+        }
+
+        /**
+         * @return self time in milliseconds
+         */
+        public double getSelfTime() {
+            return this.selfTime;
+        }
+    }
+
+    /**
+     * Node of the calling context tree, which represents a distinct call path.
+     */
+    public static class CallTreeNode implements Serializable {
+
+        private CallTreeNode parent;
+        private Method method;
+        private int hits;
+        private double time;
+        private List<CallTreeNode> children = new ArrayList<CallTreeNode>();
+
+        CallTreeNode(CallTreeNode parent, Method method, int hits, double time) {
+            this.parent = parent;
+            this.method = method;
+            this.hits = hits;
+            this.time = time;
+        }
+
+        public CallTreeNode getParent() {
+            return parent;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * @return total time spent in this call path (in milliseconds)
+         */
+        public double getTime() {
+            return time;
+        }
+
+        public List<CallTreeNode> getChildren() {
+            return children;
+        }
+    }
+
     public static class Method implements Serializable{
 
         private String className = null;
@@ -133,7 +683,14 @@ public class Snapshot implements Serializable{
         private double netTime;
         private double selfTime;
         private int hits;
+        private int probeMode = ThreadProfiler.PROBE_TIMED;
         private Map<Method, Double> childrenTimes;
+        private double compensatedNetTime;
+        private Map<Method, Double> compensatedChildrenTimes;
+        private double cpuTime = -1;
+        private long[] histogram;
+        private long maxTime;
+        private long timedHits = -1;
 
         private int[] tmp_childrenIds;
         private long[] tmp_childrenTimes;
@@ -167,6 +724,17 @@ public class Snapshot implements Serializable{
             return id;
         }
 
+        /**
+         * @return how the method was being recorded when the snapshot was taken:
+         *         {@link ThreadProfiler#PROBE_TIMED},
+         *         {@link ThreadProfiler#PROBE_COUNT_ONLY} (times stopped at the
+         *         demotion) or {@link ThreadProfiler#PROBE_REMOVED} (all statistics
+         *         stopped at the demotion)
+         */
+        public int getProbeMode() {
+            return probeMode;
+        }
+
         public String getName() {
             return name;
         }
@@ -212,6 +780,97 @@ public class Snapshot implements Serializable{
             return netTime;
         }
 
+        /**
+         * @return CPU time spent in the method (including its children) in
+         *         milliseconds, or <code>-1</code> if not recorded
+         */
+        public double getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return <code>true</code> if the distribution of the invocation times is known
+         */
+        public boolean hasLatencies() {
+            return histogram != null && maxTime > 0;
+        }
+
+        /**
+         * Estimates a percentile of the invocation times from the latency histogram.
+         * 
+         * @param fraction fraction of the invocations that are faster than the result
+         *            (for instance, <code>0.99</code>)
+         * @return time in milliseconds, or <code>0</code> if not known
+         */
+        public double getPercentile(double fraction) {
+            if (histogram == null) {
+                return 0;
+            }
+            return LatencyHistogram.percentile(histogram, fraction, maxTime) / 1e6;
+        }
+
+        /**
+         * @return longest invocation time in milliseconds, or <code>0</code> if not known
+         */
+        public double getMaxTime() {
+            return maxTime / 1e6;
+        }
+
+        /**
+         * @return number of invocations that were timed (see
+         *         {@link Snapshot#getTimingRate()})
+         */
+        public long getTimedHits() {
+            return timedHits < 0 ? hits : timedHits;
+        }
+
+        /**
+         * Estimates the error of the extrapolated times with 95% confidence, from the
+         * number of timed invocations and the spread of their times.
+         * 
+         * @return error relative to the times (<code>0.05</code> is 5%), or
+         *         <code>0</code> if all invocations were timed
+         */
+        public double getTimingError() {
+            long timed = getTimedHits();
+            if (timed >= hits || histogram == null) {
+                return 0;
+            }
+            if (timed == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double cv = LatencyHistogram.variation(histogram, maxTime);
+            return 1.96 * cv / Math.sqrt(timed) * Math.sqrt(1 - (double) timed / hits);
+        }
+
+        /**
+         * @return <code>true</code> if the times without the probe overhead are known
+         */
+        public boolean isCompensated() {
+            return compensatedChildrenTimes != null;
+        }
+
+        /**
+         * @return net time minus the estimated probe overhead, or the net time itself if
+         *         not compensated
+         */
+        public double getCompensatedNetTime() {
+            return isCompensated() ? compensatedNetTime : netTime;
+        }
+
+        /**
+         * Gets the time spent in a child method minus the estimated probe overhead.
+         * 
+         * @param method method
+         * @return time in milliseconds, or the time itself if not compensated;
+         *         <code>0</code> if the method is not a child of this one
+         */
+        public double getCompensatedChildTime(Method method) {
+            Double time = isCompensated() ? compensatedChildrenTimes.get(method)
+                    : childrenTimes.get(method);
+            return time == null ? 0 : time;
+        }
+
         @Override
         public boolean equals(Object obj) {
             return name.equals(((Method) obj).name);
@@ -0,0 +1,675 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.console;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.Scrollable;
+
+/**
+ * Timeline of the invocations made by each traced thread (see {@link Trace}), with one
+ * lane per stack depth.
+ * <p>
+ * Only the visible rows and the visible interval are drawn. Invocations are looked up
+ * by binary search, and those narrower than a pixel are drawn as a single dense block
+ * per pixel, so the cost of painting depends on the size of the view rather than on
+ * the number of events.
+ * <p>
+ * The mouse wheel zooms around the cursor, dragging moves the view and dragging with
+ * shift selects an interval, which can be aggregated into a snapshot.
+ */
+public class TimelinePanel extends JPanel {
+
+    private static final int LANE_HEIGHT = 12;
+    private static final int HEADER_HEIGHT = 16;
+    private static final int AXIS_HEIGHT = 20;
+    /**
+     * Deepest lane drawn for each thread. Deeper invocations are not shown.
+     */
+    private static final int MAX_LANES = 32;
+    private static final double ZOOM_STEP = 1.5;
+    /**
+     * Shortest interval that can be shown, in nanoseconds.
+     */
+    private static final long MIN_VIEW = 1000;
+    private static final Color DENSE_COLOR = new Color(110, 110, 110);
+    private static final Color SELECTION_COLOR = new Color(80, 120, 255, 60);
+
+    private ConsoleApp app;
+    private JPanel topPanel = null;
+    private JButton openButton = null;
+    private JButton zoomInButton = null;
+    private JButton zoomOutButton = null;
+    private JButton fitButton = null;
+    private JButton aggregateButton = null;
+    private JLabel infoLabel = null;
+    private JScrollPane scrollPane = null;
+    private Canvas canvas = null;
+    private Axis axis = null;
+    private String lastDir;
+
+    private Trace trace;
+    private Row[] rows = new Row[0];
+    /**
+     * Limits of the trace and of the view, in nanoseconds since the epoch.
+     */
+    private long traceFrom;
+    private long traceTo;
+    private long viewFrom;
+    private long viewTo;
+    /**
+     * Selected interval, or <code>selFrom == selTo</code> if none.
+     */
+    private long selFrom;
+    private long selTo;
+
+    /**
+     * Do not use this constructor.
+     */
+    public TimelinePanel() {
+        super();
+        initialize();
+    }
+
+    /**
+     * This is the default constructor
+     */
+    public TimelinePanel(ConsoleApp app) {
+        super();
+        this.app = app;
+        initialize();
+    }
+
+    /**
+     * This method initializes this
+     */
+    private void initialize() {
+        this.setLayout(new BorderLayout());
+        this.setSize(300, 200);
+        this.add(getTopPanel(), BorderLayout.NORTH);
+        this.add(getScrollPane(), BorderLayout.CENTER);
+    }
+
+    /**
+     * This method initializes topPanel
+     * 
+     * @return javax.swing.JPanel
+     */
+    private JPanel getTopPanel() {
+        if (topPanel == null) {
+            FlowLayout flowLayout = new FlowLayout();
+            flowLayout.setAlignment(FlowLayout.LEFT);
+            topPanel = new JPanel();
+            topPanel.setLayout(flowLayout);
+            openButton = newButton("fldr_obj.gif", "Open a trace directory");
+            openButton.setEnabled(true);
+            zoomInButton = newButton("zoom_in.png", "Zoom in");
+            zoomOutButton = newButton("zoom_out.png", "Zoom out");
+            fitButton = newButton("zoom.png", "Show the whole trace");
+            aggregateButton = newButton("chart_bar.png",
+                                        "Aggregate the selected (or visible) interval"
+                                                + " into a snapshot");
+            infoLabel = new JLabel();
+            topPanel.add(openButton, null);
+            topPanel.add(zoomInButton, null);
+            topPanel.add(zoomOutButton, null);
+            topPanel.add(fitButton, null);
+            topPanel.add(aggregateButton, null);
+            topPanel.add(infoLabel, null);
+        }
+        return topPanel;
+    }
+
+    private JButton newButton(String icon, String toolTip) {
+        JButton button = new JButton();
+        button.setIcon(new ImageIcon(getClass().getResource(
+                "/net/sf/profiler4j/console/images/" + icon)));
+        button.setToolTipText(toolTip);
+        button.setEnabled(false);
+        button.setPreferredSize(new Dimension(32, 32));
+        button.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                buttonPressed(e.getSource());
+            }
+        });
+        return button;
+    }
+
+    private void buttonPressed(Object source) {
+        long middle = viewFrom + (viewTo - viewFrom) / 2;
+        if (source == openButton) {
+            open();
+        } else if (source == zoomInButton) {
+            zoom(middle, 1 / ZOOM_STEP);
+        } else if (source == zoomOutButton) {
+            zoom(middle, ZOOM_STEP);
+        } else if (source == fitButton) {
+            setView(traceFrom, traceTo);
+        } else if (source == aggregateButton) {
+            aggregate();
+        }
+    }
+
+    /**
+     * This method initializes scrollPane
+     * 
+     * @return javax.swing.JScrollPane
+     */
+    private JScrollPane getScrollPane() {
+        if (scrollPane == null) {
+            canvas = new Canvas();
+            axis = new Axis();
+            scrollPane = new JScrollPane();
+            scrollPane.setBorder(BorderFactory.createLineBorder(Color.gray, 1));
+            scrollPane.setViewportView(canvas);
+            scrollPane.setColumnHeaderView(axis);
+            scrollPane.getVerticalScrollBar().setUnitIncrement(LANE_HEIGHT);
+        }
+        return scrollPane;
+    }
+
+    private void open() {
+        JFileChooser fc = new JFileChooser(lastDir);
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fc.setDialogTitle("Open Trace Directory");
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File dir = fc.getSelectedFile();
+        lastDir = dir.getParent();
+        LongTask t = new LongTask() {
+            public void executeInBackground() throws Exception {
+                setMessage("Reading trace...");
+                Trace trace = Trace.load(dir);
+                List<Trace.ThreadTrace> threads = trace.getThreads();
+                Row[] rows = new Row[threads.size()];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = new Row(threads.get(i));
+                }
+                setValue(new Object[]{trace, rows});
+            }
+        };
+        app.runTask(t);
+        if (t.getError() != null) {
+            app.error("Could not read the trace in " + dir, t.getError());
+            return;
+        }
+        Object[] value = (Object[]) t.getValue();
+        setTrace((Trace) value[0], (Row[]) value[1]);
+    }
+
+    private void setTrace(Trace trace, Row[] rows) {
+        this.trace = trace;
+        this.rows = rows;
+        traceFrom = Long.MAX_VALUE;
+        traceTo = Long.MIN_VALUE;
+        long lost = 0;
+        for (Row row : rows) {
+            if (row.count > 0) {
+                traceFrom = Math.min(traceFrom, row.from);
+                traceTo = Math.max(traceTo, row.to);
+            }
+            lost += row.lostEvents;
+        }
+        if (traceFrom > traceTo) {
+            traceFrom = traceTo = 0;
+        }
+        infoLabel.setText(String.format("%d threads%s", rows.length, lost > 0 ? String
+            .format(", %d oldest events overwritten", lost) : ""));
+        selFrom = selTo = 0;
+        boolean loaded = rows.length > 0;
+        zoomInButton.setEnabled(loaded);
+        zoomOutButton.setEnabled(loaded);
+        fitButton.setEnabled(loaded);
+        aggregateButton.setEnabled(loaded);
+        canvas.revalidate();
+        setView(traceFrom, traceTo);
+    }
+
+    private void setView(long from, long to) {
+        long length = Math.max(MIN_VIEW, to - from);
+        long traceLength = Math.max(MIN_VIEW, traceTo - traceFrom);
+        if (length > traceLength) {
+            from -= (length - traceLength) / 2;
+            length = traceLength;
+        }
+        from = Math.max(traceFrom, Math.min(from, traceTo - length));
+        viewFrom = from;
+        viewTo = from + length;
+        canvas.repaint();
+        axis.repaint();
+    }
+
+    /**
+     * Scales the view keeping a point in place.
+     * 
+     * @param t fixed point in nanoseconds since the epoch
+     * @param factor factor by which the visible interval grows
+     */
+    private void zoom(long t, double factor) {
+        setView(t - (long) ((t - viewFrom) * factor), t + (long) ((viewTo - t) * factor));
+    }
+
+    private void aggregate() {
+        long from = selFrom;
+        long to = selTo;
+        if (from == to) {
+            from = viewFrom;
+            to = viewTo;
+        }
+        app.viewSnapshot(Snapshot.fromTrace(trace, from / 1e6, to / 1e6));
+        infoLabel.setText("Snapshot of " + formatDuration(to - from) + " from "
+                + formatTime(from) + " shown in the call graph and call tree");
+    }
+
+    private long toTime(int x) {
+        int width = Math.max(1, canvas.getWidth());
+        return viewFrom + (long) ((viewTo - viewFrom) * (double) x / width);
+    }
+
+    private static String formatTime(long t) {
+        return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(t / 1000000));
+    }
+
+    private static String formatDuration(long nanos) {
+        if (nanos >= 1000000000L) {
+            return String.format("%.3fs", nanos / 1e9);
+        }
+        if (nanos >= 1000000) {
+            return String.format("%.3fms", nanos / 1e6);
+        }
+        return String.format("%.1fus", nanos / 1e3);
+    }
+
+    private static Color methodColor(String name) {
+        float hue = (name.hashCode() & 0xffff) / 65536f;
+        return Color.getHSBColor(hue, 0.45f, 0.95f);
+    }
+
+    /**
+     * First index of a sorted array whose value is at least a given one.
+     */
+    private static int lowerBound(long[] a, int from, int to, long value) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (a[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // //////////////////////////////////////////////////////////////////////////
+    // Inner classes
+    // //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Invocations of one thread split into lanes by depth. Invocations in the same lane
+     * do not overlap, so both their starts and their ends are sorted.
+     */
+    private static class Row {
+
+        String name;
+        int count;
+        long lostEvents;
+        long from;
+        long to;
+        long[][] starts;
+        long[][] ends;
+        String[][] methods;
+
+        Row(Trace.ThreadTrace tt) {
+            name = tt.getName();
+            lostEvents = tt.getLostEvents();
+            List<Trace.Span> spans = tt.getSpans();
+            int[] sizes = new int[MAX_LANES];
+            int lanes = 0;
+            for (Trace.Span s : spans) {
+                if (s.getDepth() < MAX_LANES) {
+                    sizes[s.getDepth()]++;
+                    lanes = Math.max(lanes, s.getDepth() + 1);
+                }
+            }
+            starts = new long[lanes][];
+            ends = new long[lanes][];
+            methods = new String[lanes][];
+            for (int d = 0; d < lanes; d++) {
+                starts[d] = new long[sizes[d]];
+                ends[d] = new long[sizes[d]];
+                methods[d] = new String[sizes[d]];
+            }
+            int[] n = new int[lanes];
+            from = Long.MAX_VALUE;
+            to = Long.MIN_VALUE;
+            for (Trace.Span s : spans) {
+                int d = s.getDepth();
+                if (d < MAX_LANES) {
+                    starts[d][n[d]] = s.start;
+                    ends[d][n[d]] = s.end;
+                    methods[d][n[d]] = s.getMethodName();
+                    n[d]++;
+                    from = Math.min(from, s.start);
+                    to = Math.max(to, s.end);
+                    count++;
+                }
+            }
+        }
+
+        int getHeight() {
+            return HEADER_HEIGHT + Math.max(1, starts.length) * LANE_HEIGHT;
+        }
+    }
+
+    /**
+     * Component where the rows are drawn.
+     */
+    private class Canvas extends JComponent implements Scrollable {
+
+        private int dragX = -1;
+        private long dragFrom;
+        private boolean selecting;
+
+        Canvas() {
+            setOpaque(true);
+            setBackground(Color.white);
+            setFont(new Font("Arial", Font.PLAIN, 10));
+            setToolTipText("");
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    dragX = e.getX();
+                    dragFrom = viewFrom;
+                    selecting = e.isShiftDown();
+                    if (selecting) {
+                        selFrom = selTo = toTime(e.getX());
+                        repaint();
+                    }
+                }
+
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    dragX = -1;
+                }
+
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    if (e.getClickCount() == 2) {
+                        // zoom into the invocation
+                        long[] span = findSpan(e.getX(), e.getY());
+                        if (span != null) {
+                            long margin = (span[1] - span[0]) / 10;
+                            setView(span[0] - margin, span[1] + margin);
+                        }
+                    }
+                }
+            });
+            addMouseMotionListener(new MouseMotionAdapter() {
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    if (dragX < 0) {
+                        return;
+                    }
+                    if (selecting) {
+                        long t0 = toTime(dragX);
+                        long t1 = toTime(e.getX());
+                        selFrom = Math.min(t0, t1);
+                        selTo = Math.max(t0, t1);
+                        repaint();
+                    } else {
+                        double dx = (e.getX() - dragX) / (double) Math.max(1, getWidth());
+                        long dt = (long) ((viewTo - viewFrom) * dx);
+                        setView(dragFrom - dt, dragFrom - dt + (viewTo - viewFrom));
+                    }
+                }
+            });
+            addMouseWheelListener(new MouseWheelListener() {
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    double factor = Math.pow(ZOOM_STEP, e.getWheelRotation());
+                    zoom(toTime(e.getX()), factor);
+                }
+            });
+        }
+
+        /**
+         * Looks up the invocation at a point.
+         * 
+         * @return start, end and index of the lane, row and invocation, or
+         *         <code>null</code> if there is none
+         */
+        long[] findSpan(int x, int y) {
+            int top = 0;
+            for (int r = 0; r < rows.length; r++) {
+                Row row = rows[r];
+                int h = row.getHeight();
+                if (y < top + h) {
+                    int lane = (y - top - HEADER_HEIGHT) / LANE_HEIGHT;
+                    if (y < top + HEADER_HEIGHT || lane >= row.starts.length) {
+                        return null;
+                    }
+                    long t = toTime(x);
+                    long[] ends = row.ends[lane];
+                    // tolerance of one pixel, so that narrow invocations can be found
+                    long slack = toTime(x + 1) - t;
+                    int i = lowerBound(ends, 0, ends.length, t - slack);
+                    if (i < ends.length && row.starts[lane][i] <= t + slack) {
+                        return new long[]{row.starts[lane][i], ends[i], lane, r, i};
+                    }
+                    return null;
+                }
+                top += h;
+            }
+            return null;
+        }
+
+        @Override
+        public String getToolTipText(MouseEvent e) {
+            long[] span = findSpan(e.getX(), e.getY());
+            if (span == null) {
+                return null;
+            }
+            String method = rows[(int) span[3]].methods[(int) span[2]][(int) span[4]];
+            return String.format("<html>%s<br>%s at %s</html>", method,
+                                 formatDuration(span[1] - span[0]), formatTime(span[0]));
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            if (viewTo <= viewFrom) {
+                return;
+            }
+            FontMetrics fm = g.getFontMetrics();
+            double scale = getWidth() / (double) (viewTo - viewFrom);
+            int top = 0;
+            for (Row row : rows) {
+                int h = row.getHeight();
+                if (top + h > clip.y && top < clip.y + clip.height) {
+                    g.setColor(new Color(235, 235, 245));
+                    g.fillRect(clip.x, top, clip.width, HEADER_HEIGHT);
+                    g.setColor(Color.darkGray);
+                    g.drawString(row.name, 4, top + HEADER_HEIGHT - 4);
+                    for (int d = 0; d < row.starts.length; d++) {
+                        int y = top + HEADER_HEIGHT + d * LANE_HEIGHT;
+                        if (y + LANE_HEIGHT > clip.y && y < clip.y + clip.height) {
+                            paintLane(g, fm, scale, row.starts[d], row.ends[d],
+                                      row.methods[d], y);
+                        }
+                    }
+                }
+                top += h;
+            }
+            if (selTo > selFrom) {
+                int x0 = (int) ((selFrom - viewFrom) * scale);
+                int x1 = (int) ((selTo - viewFrom) * scale);
+                g.setColor(SELECTION_COLOR);
+                g.fillRect(x0, clip.y, Math.max(1, x1 - x0), clip.height);
+            }
+        }
+
+        /**
+         * Draws the visible invocations of a lane. Runs of invocations narrower than a
+         * pixel are skipped with a binary search and drawn as one dense block.
+         */
+        private void paintLane(Graphics g, FontMetrics fm, double scale, long[] starts,
+                               long[] ends, String[] methods, int y) {
+            int n = starts.length;
+            int i = lowerBound(ends, 0, n, viewFrom);
+            while (i < n && starts[i] <= viewTo) {
+                int x0 = (int) Math.max(-1, (starts[i] - viewFrom) * scale);
+                int x1 = (int) Math.min(getWidth() + 1, (ends[i] - viewFrom) * scale);
+                if (x1 - x0 >= 2) {
+                    g.setColor(methodColor(methods[i]));
+                    g.fillRect(x0, y, x1 - x0, LANE_HEIGHT - 1);
+                    g.setColor(Color.gray);
+                    g.drawLine(x0, y, x0, y + LANE_HEIGHT - 2);
+                    String label = methods[i];
+                    if (x1 - x0 > 30) {
+                        int p = label.indexOf('(');
+                        if (p > 0) {
+                            label = label.substring(label.lastIndexOf('.', p - 1) + 1, p);
+                        }
+                        int w = fm.stringWidth(label);
+                        if (w < x1 - x0 - 4) {
+                            g.setColor(Color.black);
+                            g.drawString(label, Math.max(x0, 0) + 2, y + LANE_HEIGHT - 3);
+                        }
+                    }
+                    i++;
+                } else {
+                    // the invocations that start within the next pixel are merged
+                    long next = viewFrom + (long) Math.ceil((x0 + 1) / scale);
+                    int j = Math.max(i + 1, lowerBound(starts, i, n, next));
+                    if (j - 1 > i && (ends[j - 1] - starts[j - 1]) * scale >= 2) {
+                        // the last one is drawn on its own
+                        j--;
+                    }
+                    double x2 = (ends[j - 1] - viewFrom) * scale;
+                    int end = (int) Math.min(getWidth(), x2);
+                    g.setColor(DENSE_COLOR);
+                    g.fillRect(x0, y, Math.max(1, end - x0), LANE_HEIGHT - 1);
+                    i = j;
+                }
+            }
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            int height = 0;
+            for (Row row : rows) {
+                height += row.getHeight();
+            }
+            return new Dimension(400, height);
+        }
+
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+
+        public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation,
+                                              int direction) {
+            return LANE_HEIGHT;
+        }
+
+        public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation,
+                                               int direction) {
+            return visibleRect.height;
+        }
+
+        public boolean getScrollableTracksViewportWidth() {
+            return true;
+        }
+
+        public boolean getScrollableTracksViewportHeight() {
+            return false;
+        }
+    }
+
+    /**
+     * Time scale drawn above the rows.
+     */
+    private class Axis extends JComponent {
+
+        Axis() {
+            setOpaque(true);
+            setFont(new Font("Arial", Font.PLAIN, 10));
+            setPreferredSize(new Dimension(400, AXIS_HEIGHT));
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(new Color(245, 245, 245));
+            g.fillRect(0, 0, getWidth(), getHeight());
+            g.setColor(Color.gray);
+            g.drawLine(0, getHeight() - 1, getWidth(), getHeight() - 1);
+            long length = viewTo - viewFrom;
+            if (length <= 0) {
+                return;
+            }
+            // about one tick every 100 pixels, rounded to 1, 2 or 5 times a power of 10
+            double raw = length * 100.0 / Math.max(1, getWidth());
+            double step = Math.pow(10, Math.floor(Math.log10(raw)));
+            if (raw / step >= 5) {
+                step *= 5;
+            } else if (raw / step >= 2) {
+                step *= 2;
+            }
+            FontMetrics fm = g.getFontMetrics();
+            String start = formatTime(viewFrom);
+            int startX = getWidth() - fm.stringWidth(start) - 4;
+            double scale = getWidth() / (double) length;
+            long offset = viewFrom - traceFrom;
+            int labelEnd = 0;
+            double first = Math.ceil(offset / step) * step;
+            for (double t = first; t <= offset + length; t += step) {
+                int x = (int) ((t - offset) * scale);
+                g.drawLine(x, getHeight() - 5, x, getHeight() - 1);
+                String label = "+" + formatDuration((long) t);
+                if (x > labelEnd && x + 2 + fm.stringWidth(label) < startX) {
+                    g.drawString(label, x + 2, getHeight() - 6);
+                    labelEnd = x + 2 + fm.stringWidth(label) + 4;
+                }
+            }
+            g.setColor(Color.black);
+            g.drawString(start, startX, getHeight() - 6);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2006 Antonio S. R. Gomes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package net.sf.profiler4j.console;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.profiler4j.agent.TraceBuffer;
+
+/**
+ * Timelines of the threads traced by the agent (see the agent option
+ * <code>trace</code>), rebuilt from the entries and exits kept in their ring buffers.
+ * The files can be read while the agent is still writing them.
+ * <p>
+ * Invocations whose entry was overwritten in the ring buffer are lost; those without
+ * an exit (still running, or left by a session change) end at the last event of their
+ * thread and are flagged as incomplete.
+ * 
+ * @see Snapshot#fromTrace(Trace, double, double)
+ */
+public class Trace implements Serializable {
+
+    private List<ThreadTrace> threads = new ArrayList<ThreadTrace>();
+
+    /**
+     * Reads the trace files of a directory.
+     * 
+     * @param dir directory of the trace files
+     * @return trace
+     * @throws IOException
+     */
+    public static Trace load(File dir) throws IOException {
+        Map<Integer, String> names = readMethodNames(new File(dir,
+                TraceBuffer.METHODS_FILE));
+        Trace trace = new Trace();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.getName().endsWith(TraceBuffer.SUFFIX)) {
+                trace.threads.add(readThread(f, names));
+            }
+        }
+        return trace;
+    }
+
+    private static Map<Integer, String> readMethodNames(File f) throws IOException {
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int p = line.indexOf('\t');
+                if (p > 0) {
+                    names.put(Integer.parseInt(line.substring(0, p)), line
+                        .substring(p + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    private static ThreadTrace readThread(File f, Map<Integer, String> names)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < TraceBuffer.HEADER_SIZE
+                || buffer.getInt(0) != TraceBuffer.MAGIC) {
+            throw new IOException("Invalid trace file " + f);
+        }
+        if (buffer.getInt(4) != TraceBuffer.VERSION) {
+            throw new IOException("Unsupported trace version in " + f);
+        }
+        ThreadTrace tt = new ThreadTrace();
+        tt.id = buffer.getLong(TraceBuffer.THREAD_ID_OFFSET);
+        int length = buffer.getInt(TraceBuffer.NAME_OFFSET);
+        char[] name = new char[Math.min(length, TraceBuffer.MAX_NAME_LENGTH)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = buffer.getChar(TraceBuffer.NAME_OFFSET + 4 + 2 * i);
+        }
+        tt.name = new String(name);
+        long baseMillis = buffer.getLong(TraceBuffer.BASE_MILLIS_OFFSET);
+        long baseNanos = buffer.getLong(TraceBuffer.BASE_NANOS_OFFSET);
+        int capacity = buffer.getInt(TraceBuffer.CAPACITY_OFFSET);
+
+        // copy the records before rebuilding the timeline, as the agent may be writing
+        long count = buffer.getLong(TraceBuffer.COUNT_OFFSET);
+        int n = (int) Math.min(count, capacity);
+        long first = count - n;
+        long[] times = new long[n];
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            int pos = TraceBuffer.HEADER_SIZE + (int) ((first + i) % capacity)
+                    * TraceBuffer.RECORD_SIZE;
+            times[i] = baseMillis * 1000000 + buffer.getLong(pos) - baseNanos;
+            ids[i] = buffer.getInt(pos + 8);
+        }
+        // records overwritten while they were copied are dropped
+        long overwritten = buffer.getLong(TraceBuffer.COUNT_OFFSET) - count;
+        int start = (int) Math.min(n, overwritten);
+        tt.events = count;
+        tt.lostEvents = first + start;
+        tt.build(times, ids, start, n, names);
+        return tt;
+    }
+
+    /**
+     * @return timelines of the traced threads
+     */
+    public List<ThreadTrace> getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * @return time of the oldest event in milliseconds since the epoch, or
+     *         <code>0</code> if there are none
+     */
+    public double getStart() {
+        double start = Double.MAX_VALUE;
+        for (ThreadTrace tt : threads) {
+            if (!tt.spans.isEmpty()) {
+                start = Math.min(start, tt.spans.get(0).getStart());
+            }
+        }
+        return start == Double.MAX_VALUE ? 0 : start;
+    }
+
+    /**
+     * @return time of the newest event in milliseconds since the epoch, or
+     *         <code>0</code> if there are none
+     */
+    public double getEnd() {
+        double end = 0;
+        for (ThreadTrace tt : threads) {
+            for (Span s : tt.spans) {
+                end = Math.max(end, s.getEnd());
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Timeline of one thread.
+     */
+    public static class ThreadTrace implements Serializable {
+
+        private long id;
+        private String name;
+        private long events;
+        private long lostEvents;
+        private long lostInvocations;
+        private List<Span> spans = new ArrayList<Span>();
+
+        /**
+         * Pairs the entries and exits of a thread into spans.
+         */
+        private void build(long[] times, int[] ids, int start, int n,
+                           Map<Integer, String> names) {
+            List<Span> open = new ArrayList<Span>();
+            for (int i = start; i < n; i++) {
+                long t = times[i];
+                int id = ids[i];
+                if (id >= 0) {
+                    Span s = new Span();
+                    s.methodId = id;
+                    s.methodName = names.get(id);
+                    if (s.methodName == null) {
+                        s.methodName = "#" + id;
+                    }
+                    s.depth = open.size();
+                    s.parent = open.isEmpty() ? null : open.get(open.size() - 1);
+                    s.start = t;
+                    open.add(s);
+                    spans.add(s);
+                    continue;
+                }
+                int k = open.size() - 1;
+                while (k >= 0 && open.get(k).methodId != ~id) {
+                    k--;
+                }
+                if (k < 0) {
+                    // the entry was overwritten
+                    lostInvocations++;
+                    continue;
+                }
+                while (open.size() > k + 1) {
+                    open.remove(open.size() - 1).end = t;
+                }
+                Span s = open.remove(k);
+                s.end = t;
+                s.complete = true;
+            }
+            long last = n > start ? times[n - 1] : 0;
+            for (Span s : open) {
+                s.end = last;
+            }
+            for (Span s : spans) {
+                if (s.parent != null) {
+                    s.parent.childTime += s.end - s.start;
+                }
+            }
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        /**
+         * @return name of the thread (truncated to
+         *         {@link TraceBuffer#MAX_NAME_LENGTH} characters)
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return number of events written by the thread
+         */
+        public long getEvents() {
+            return this.events;
+        }
+
+        /**
+         * @return number of events overwritten in the ring buffer
+         */
+        public long getLostEvents() {
+            return this.lostEvents;
+        }
+
+        /**
+         * @return number of exits whose entry was overwritten in the ring buffer
+         */
+        public long getLostInvocations() {
+            return this.lostInvocations;
+        }
+
+        /**
+         * @return invocations in the order they started
+         */
+        public List<Span> getSpans() {
+            return this.spans;
+        }
+
+        /**
+         * Selects the invocations that were running in an interval.
+         * 
+         * @param from start of the interval in milliseconds since the epoch
+         * @param to end of the interval in milliseconds since the epoch
+         * @return invocations in the order they started
+         */
+        public List<Span> getSpans(double from, double to) {
+            List<Span> list = new ArrayList<Span>();
+            for (Span s : spans) {
+                if (s.getStart() > to) {
+                    break;
+                }
+                if (s.getEnd() >= from) {
+                    list.add(s);
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Invocation of a method by a traced thread.
+     */
+    public static class Span implements Serializable {
+
+        private int methodId;
+        private String methodName;
+        private int depth;
+        private Span parent;
+        /**
+         * Times in nanoseconds since the epoch.
+         */
+        long start;
+        long end;
+        /**
+         * Time spent in the invocations made by this one, in nanoseconds.
+         */
+        long childTime;
+        private boolean complete;
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        /**
+         * @return number of enclosing invocations that are still in the trace
+         */
+        public int getDepth() {
+            return this.depth;
+        }
+
+        /**
+         * @return enclosing invocation, or <code>null</code> if it is not in the trace
+         */
+        public Span getParent() {
+            return this.parent;
+        }
+
+        /**
+         * @return start time in milliseconds since the epoch
+         */
+        public double getStart() {
+            return start / 1e6;
+        }
+
+        /**
+         * @return end time in milliseconds since the epoch
+         */
+        public double getEnd() {
+            return end / 1e6;
+        }
+
+        /**
+         * @return net time in milliseconds
+         */
+        public double getNetTime() {
+            return (end - start) / 1e6;
+        }
+
+        /**
+         * @return <code>true</code> if an enclosing invocation in the trace is of the
+         *         same method
+         */
+        boolean isRecursive() {
+            for (Span p = parent; p != null; p = p.parent) {
+                if (p.methodId == methodId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return <code>false</code> if the exit of the invocation is not in the trace
+         */
+        public boolean isComplete() {
+            return this.complete;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -31,10 +32,14 @@ import java.util.Stack;
 import javax.swing.tree.DefaultMutableTreeNode;
 
 import net.sf.profiler4j.agent.SnapshotUtil;
+import net.sf.profiler4j.console.Snapshot.CallTreeNode;
 import net.sf.profiler4j.console.Snapshot.Method;
 
 /**
  * Class responsible for creating a tree that represents all call contexts from root methods.
+ * <p>
+ * If the snapshot contains the calling context tree recorded by the agent the tree is
+ * exact. Otherwise it is estimated from the time spent by each method in its callees.
  * 
  * @author Antonio S. R. Gomes
  */
@@ -77,6 +82,11 @@ public class TreeBuilder {
     }
 
     public DefaultMutableTreeNode buildTree() {
+        if (snapshot.getCallTree() != null) {
+            buildExactTree();
+            addSlowInvocations();
+            return root;
+        }
         findRootMethods();
         root = new DefaultMutableTreeNode();
         int ncut = maxRootCount;
@@ -88,9 +98,111 @@ public class TreeBuilder {
                 break;
             }
         }
+        addSlowInvocations();
+        return root;
+    }
+
+    private DefaultMutableTreeNode buildExactTree() {
+        root = new DefaultMutableTreeNode();
+        List<CallTreeNode> roots = new ArrayList<CallTreeNode>(snapshot.getCallTree()
+            .getChildren());
+        Collections.sort(roots, byTimeDescending);
+        int ncut = maxRootCount;
+        for (CallTreeNode n : roots) {
+            if (ncut-- == 0 || n.getTime() < minimumTotalTime) {
+                break;
+            }
+            String text = format("[%6.0fms] %s", n.getTime(), n.getMethod().getName());
+            createExactNodes(root, n, n.getTime(), text, Type.ROOT);
+        }
         return root;
     }
 
+    private void createExactNodes(DefaultMutableTreeNode parentNode,
+                                  CallTreeNode n,
+                                  double rootTotalTime,
+                                  String text,
+                                  Type type) {
+        double percent = (rootTotalTime == 0) ? 0 : n.getTime() / rootTotalTime;
+        NodeInfo nodeInfo = new NodeInfo(text, n.getMethod(), percent, type);
+        DefaultMutableTreeNode node = new DefaultMutableTreeNode(nodeInfo);
+        parentNode.add(node);
+
+        List<CallTreeNode> children = new ArrayList<CallTreeNode>(n.getChildren());
+        Collections.sort(children, byTimeDescending);
+        for (CallTreeNode child : children) {
+            double childPercent = (rootTotalTime == 0) ? 0 : child.getTime()
+                    / rootTotalTime;
+            if (childPercent < minChildPercent) {
+                break;
+            }
+            String childText = format("[%2.0f%%; %6.0fms] %s",
+                                      childPercent * 100,
+                                      child.getTime(),
+                                      formatMethod(child.getMethod()));
+            createExactNodes(node, child, rootTotalTime, childText, Type.CHILD);
+        }
+    }
+
+    /**
+     * Adds the slow invocations captured by the agent, most recent first, below a node
+     * of their own.
+     */
+    private void addSlowInvocations() {
+        List<SlowInvocation> slow = snapshot.getSlowInvocations();
+        if (slow == null || slow.isEmpty()) {
+            return;
+        }
+        Map<String, Method> methodsByName = new HashMap<String, Method>();
+        for (Method m : snapshot.getMethods().values()) {
+            methodsByName.put(m.getName(), m);
+        }
+        String groupText = format("Slow invocations (%d)", slow.size());
+        DefaultMutableTreeNode group = new DefaultMutableTreeNode(new NodeInfo(groupText,
+                null, 0, Type.SELF));
+        root.add(group);
+        for (int i = slow.size() - 1; i >= 0; i--) {
+            SlowInvocation si = slow.get(i);
+            SlowInvocation.Node n = si.getRoot();
+            String text = format("[%6.0fms] %s (%s at %tT)",
+                                 n.getNetTime(),
+                                 n.getMethodName(),
+                                 si.getThreadName(),
+                                 new Date(si.getTime()));
+            createSlowNodes(group, n, n.getNetTime(), text, Type.ROOT, methodsByName);
+        }
+    }
+
+    private void createSlowNodes(DefaultMutableTreeNode parentNode,
+                                 SlowInvocation.Node n,
+                                 double rootTotalTime,
+                                 String text,
+                                 Type type,
+                                 Map<String, Method> methodsByName) {
+        double percent = (rootTotalTime == 0) ? 0 : n.getNetTime() / rootTotalTime;
+        NodeInfo nodeInfo = new NodeInfo(text, methodsByName.get(n.getMethodName()),
+                percent, type);
+        DefaultMutableTreeNode node = new DefaultMutableTreeNode(nodeInfo);
+        parentNode.add(node);
+        for (SlowInvocation.Node child : n.getChildren()) {
+            double childPercent = (rootTotalTime == 0) ? 0 : child.getNetTime()
+                    / rootTotalTime;
+            String childText = format("[%2.0f%%; %6.1fms at +%.1fms] %s",
+                                      childPercent * 100,
+                                      child.getNetTime(),
+                                      child.getStart(),
+                                      formatMethod(child.getMethodName()));
+            createSlowNodes(node, child, rootTotalTime, childText, Type.CHILD,
+                            methodsByName);
+        }
+    }
+
+    private static final Comparator<CallTreeNode> byTimeDescending = new Comparator<CallTreeNode>() {
+        public int compare(CallTreeNode n1, CallTreeNode n2) {
+            return (int) Math.signum(n2.getTime() - n1.getTime());
+        }
+    };
+
     private void findRootMethods() {
         methodTypes = new HashMap<Integer, Type>(snapshot.getMethods().size());
         rootMethods = new ArrayList<Method>();
@@ -203,9 +315,13 @@ public class TreeBuilder {
     }
 
     private String formatMethod(Method method) {
-        int p0 = method.getName().indexOf("#") + 1;
-        int p1 = method.getName().indexOf("(");
-        return method.getName().substring(p0, p1) + "()";
+        return formatMethod(method.getName());
+    }
+
+    private String formatMethod(String name) {
+        int p0 = name.indexOf("#") + 1;
+        int p1 = name.indexOf("(");
+        return name.substring(p0, p1) + "()";
     }
 
     // //////////////////////////////////////////////////////////////////////////